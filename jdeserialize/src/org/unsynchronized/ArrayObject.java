@@ -25,6 +25,17 @@ public class ArrayObject extends Content {
         this.data = data;
     }
 
+    /**
+     * Gets the unboxed values of an array of primitives, as read in bulk from the stream.
+     *
+     * @return a byte[], char[], double[], float[], int[], long[], short[] or boolean[]
+     * matching the element type; or null if this is an array of references
+     * @see ObjectList#getPrimitiveArray()
+     */
+    public Object getPrimitiveArray() {
+        return data.getPrimitiveArray();
+    }
+
     public String toString() {
         return "[Array " + JDeserialize.hex(handle) + " classdesc " + classDescriptor.toString() + ": "
                 + data.toString() + "]";
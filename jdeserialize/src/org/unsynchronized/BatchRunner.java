@@ -0,0 +1,217 @@
+package org.unsynchronized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Parses many files concurrently; this is the -threads mode of JDeserialize.main().
+ * Every file gets its own JDeserialize, which prints into a private buffer, so files
+ * don't share any parser state.
+ * </p>
+ *
+ * <p>
+ * Files are handed to a work-stealing pool largest first, so that a big file found late
+ * in the list doesn't end up running alone at the end.  By default, the output of each
+ * file is written in the order the files were given, wrapped in "//// BEGIN file" and
+ * "//// END file" lines; with NDJSON output, one JSON record is written per file as soon
+ * as the file is done.
+ * </p>
+ */
+public class BatchRunner {
+    private final OptionManager go;
+    private final int threads;
+    private final boolean ndjson;
+
+    /**
+     * The outcome of parsing one file.
+     */
+    private static final class Result {
+        String file;
+        long size;
+        long nanos;
+        byte[] output;
+        String error;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param go the parsed command-line options, used to set up each parser
+     * @param threads the number of files to parse at a time
+     * @param ndjson true to write a JSON record per file in completion order, false to
+     * write plain output in file order
+     */
+    public BatchRunner(OptionManager go, int threads, boolean ndjson) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("invalid thread count: " + threads);
+        }
+        this.go = go;
+        this.threads = threads;
+        this.ndjson = ndjson;
+    }
+
+    /**
+     * Replaces every directory in the given list with the regular files below it,
+     * recursively and sorted by path, leaving out index files (see IndexFile).  Other
+     * arguments are kept as they are.
+     *
+     * @param args file and directory names
+     * @return the file names
+     * @throws IOException if a directory can't be listed
+     */
+    public static List<String> expandFiles(List<String> args) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (!Files.isDirectory(path)) {
+                files.add(arg);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(Files::isRegularFile).map(Path::toString).filter(name -> !name.endsWith(IndexFile.SUFFIX))
+                        .sorted().forEach(files::add);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Parses all files and writes their output.
+     *
+     * @param files the files to parse
+     * @param out the stream to write the output to
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public void run(List<String> files, PrintStream out) throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        try {
+            long[] sizes = new long[files.size()];
+            List<Integer> order = new ArrayList<>(files.size());
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = sizeOf(files.get(i));
+                order.add(i);
+            }
+            order.sort(Comparator.comparingLong((Integer i) -> sizes[i]).reversed());
+
+            ExecutorCompletionService<Result> completion = new ExecutorCompletionService<>(pool);
+            List<Future<Result>> futures = new ArrayList<>(files.size());
+            for (int i = 0; i < sizes.length; i++) {
+                futures.add(null);
+            }
+            for (int i : order) {
+                String file = files.get(i);
+                long size = sizes[i];
+                futures.set(i, completion.submit(() -> parse(file, size)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Result> future = ndjson ? completion.take() : futures.get(i);
+                Result result = getResult(future);
+                if (ndjson) {
+                    writeRecord(result, out);
+                } else {
+                    out.println("//// BEGIN file " + result.file);
+                    out.write(result.output, 0, result.output.length);
+                    out.println("//// END file " + result.file);
+                    out.println();
+                }
+                futures.set(i, null);
+            }
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long sizeOf(String file) {
+        try {
+            return Files.size(Paths.get(file));
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+
+    private static Result getResult(Future<Result> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            // parse() catches everything a single file can throw
+            throw new IllegalStateException(ee.getCause());
+        }
+    }
+
+    private Result parse(String file, long size) {
+        Result result = new Result();
+        result.file = file;
+        result.size = size;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(buffer);
+        long start = System.nanoTime();
+        try (JDeserialize jd = JDeserialize.fromOptions(go, ps)) {
+            jd.runFile(file, go);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            result.error = e.toString();
+            if (!ndjson) {
+                ps.println("error while attempting to decode file " + file + ": " + e.getMessage());
+                e.printStackTrace(ps);
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        ps.flush();
+        result.output = buffer.toByteArray();
+        return result;
+    }
+
+    private static void writeRecord(Result result, PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"file\":");
+        appendJsonString(sb, result.file);
+        sb.append(",\"size\":").append(result.size);
+        sb.append(",\"millis\":").append(result.nanos / 1000000);
+        sb.append(",\"ok\":").append(result.error == null);
+        sb.append(",\"error\":");
+        if (result.error == null) {
+            sb.append("null");
+        } else {
+            appendJsonString(sb, result.error);
+        }
+        sb.append(",\"output\":");
+        appendJsonString(sb, new String(result.output));
+        sb.append('}');
+        out.println(sb);
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (ch < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
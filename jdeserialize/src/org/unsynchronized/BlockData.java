@@ -1,17 +1,42 @@
 package org.unsynchronized;
 
+import java.io.IOException;
+
 /**
+ * <p>
  * Represents an opaque block of data written to the stream.  Primarily, these are used to
  * write class and object annotations by ObjectOutputStream overrides; they can also occur
  * inside an object, when the object overrides Serializable.writeObject().  Their
  * interpretation is hereby left to users.
+ * </p>
+ *
+ * <p>
+ * When the parser reads block data lazily (see JDeserialize.setLazyBlockData()), the
+ * bytes are left in the input: buf is null, and only the offset and size are kept.
+ * getData() reads the bytes from the input whenever they're needed.  Block data larger
+ * than the parser's payload threshold (see JDeserialize.setPayloadThreshold()) is left
+ * in the input the same way, or copied into a temporary file if the input doesn't keep
+ * it; either way, getPayload() gives access to the bytes without reading all of them.
+ * </p>
  */
 public class BlockData extends Content {
     /**
-     * The block data read from the stream.
+     * The block data read from the stream, or null if the data was left in the input.
      */
     public byte[] buf;
 
+    /**
+     * The offset of the data in the input, or -1 if it isn't known.
+     */
+    public final long offset;
+
+    /**
+     * The length of the data, in bytes.
+     */
+    public final int size;
+
+    private final Payload payload;
+
     /**
      * Constructor.
      *
@@ -20,9 +45,60 @@ public class BlockData extends Content {
     public BlockData(byte[] buf) {
         super(ContentType.BLOCKDATA);
         this.buf = buf;
+        this.offset = -1;
+        this.size = buf.length;
+        this.payload = null;
+    }
+
+    /**
+     * Constructor for block data that is left in the input.
+     *
+     * @param source the input holding the data; must be persistent
+     * @param offset the offset of the data in the input
+     * @param size the length of the data, in bytes
+     */
+    public BlockData(ISerialInput source, long offset, int size) {
+        super(ContentType.BLOCKDATA);
+        this.offset = offset;
+        this.size = size;
+        this.payload = new Payload(source, offset, size);
+    }
+
+    /**
+     * Constructor for block data that is kept in a payload.
+     *
+     * @param payload the payload holding the data
+     * @param offset the offset of the data in the input, or -1 if it isn't known
+     */
+    public BlockData(Payload payload, long offset) {
+        super(ContentType.BLOCKDATA);
+        this.offset = offset;
+        this.size = (int) payload.length();
+        this.payload = payload;
+    }
+
+    /**
+     * @return the payload holding the data, or null if the data is in buf
+     */
+    public Payload getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the block data.  Data that was left in the input is read from it again on
+     * every call, so callers that need it repeatedly should keep the result.
+     *
+     * @return the block data
+     * @throws IOException if the data can't be read from the input
+     */
+    public byte[] getData() throws IOException {
+        if (buf != null) {
+            return buf;
+        }
+        return payload.getBytes();
     }
 
     public String toString() {
-        return "[blockdata " + JDeserialize.hex(handle) + ": " + buf.length + " bytes]";
+        return "[blockdata " + JDeserialize.hex(handle) + ": " + size + " bytes]";
     }
 }
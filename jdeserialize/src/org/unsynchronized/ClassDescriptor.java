@@ -1,5 +1,7 @@
 package org.unsynchronized;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.io.ObjectStreamConstants;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -23,6 +25,11 @@ import java.util.Set;
  * </p>
  */
 public class ClassDescriptor extends Content {
+    /**
+     * The name given to proxy class descriptions, which have none in the stream.
+     */
+    public static final String PROXY_CLASS_NAME = "(proxy class; no name)";
+
     /**
      * Type of the class being represented; either a normal class or a proxy class.
      */
@@ -76,6 +83,88 @@ public class ClassDescriptor extends Content {
      */
     public Set<String> enumConstants;
 
+    private ClassLayout layout;
+
+    /**
+     * Reads the rest of the header of a TC_CLASSDESC: its flags and field descriptions,
+     * which follow the class name and serialVersionUID.  Every parser assigns the
+     * description's handle after the serialVersionUID, since the type names of the fields
+     * are assigned handles of their own.  The annotations and superclass description
+     * that follow are left to the parser, as is the handle.
+     *
+     * @param in the input, positioned at the flags
+     * @param name the class name
+     * @param uid the serialVersionUID
+     * @param typeNames reads the type names of object and array fields
+     * @return the class description
+     * @throws IOException if the header can't be read, or isn't valid
+     */
+    public static ClassDescriptor readClassDesc(DataInput in, String name, long uid, ITypeNameReader typeNames) throws IOException {
+        byte descflags = in.readByte();
+        short fieldCount = in.readShort();
+        if (fieldCount < 0) {
+            throw new IOException("invalid field count: " + fieldCount);
+        }
+        Field[] fields = new Field[fieldCount];
+        for (short s = 0; s < fieldCount; s++) {
+            byte fieldType = in.readByte();
+            if (fieldType == 'B' || fieldType == 'C' || fieldType == 'D'
+                    || fieldType == 'F' || fieldType == 'I' || fieldType == 'J'
+                    || fieldType == 'S' || fieldType == 'Z') {
+                fields[s] = new Field(FieldType.get(fieldType), in.readUTF());
+            } else if (fieldType == '[' || fieldType == 'L') {
+                String fieldName = in.readUTF();
+                fields[s] = new Field(FieldType.get(fieldType), fieldName, typeNames.readTypeName());
+            } else {
+                throw new IOException("invalid field type char: " + JDeserialize.hex(fieldType));
+            }
+        }
+        ClassDescriptor cd = new ClassDescriptor(ClassDescriptorType.NORMALCLASS);
+        cd.name = name;
+        cd.uid = uid;
+        cd.descriptorFlags = descflags;
+        cd.fields = fields;
+        return cd;
+    }
+
+    /**
+     * Reads the header of a TC_PROXYCLASSDESC, its interface names, after the parser has
+     * assigned the description's handle.  The annotations and superclass description
+     * that follow are left to the parser.
+     *
+     * @param in the input, positioned just after the typecode
+     * @return the class description, named PROXY_CLASS_NAME
+     * @throws IOException if the header can't be read, or isn't valid
+     */
+    public static ClassDescriptor readProxyClassDesc(DataInput in) throws IOException {
+        int interfaceCount = in.readInt();
+        if (interfaceCount < 0) {
+            throw new IOException("invalid proxy interface count: " + JDeserialize.hex(interfaceCount));
+        }
+        String[] interfaces = new String[interfaceCount];
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces[i] = in.readUTF();
+        }
+        ClassDescriptor cd = new ClassDescriptor(ClassDescriptorType.PROXYCLASS);
+        cd.name = PROXY_CLASS_NAME;
+        cd.interfaces = interfaces;
+        return cd;
+    }
+
+    /**
+     * Gets the storage layout for instances of this class, computing it on first use.
+     * The layout reflects the fields and superclasses at that time, so it should only be
+     * requested once the description has been read completely.
+     *
+     * @return the layout
+     */
+    public ClassLayout getLayout() {
+        if (layout == null) {
+            layout = new ClassLayout(this);
+        }
+        return layout;
+    }
+
     private boolean isInnerClass = false;
 
     /**
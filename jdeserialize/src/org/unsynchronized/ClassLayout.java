@@ -0,0 +1,267 @@
+package org.unsynchronized;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The storage layout of the field data of instances of a class, and the plan for
+ * decoding it.  Every field that is
+ * read for an instance -- that is, every field of every serializable class in the
+ * hierarchy, in stream order -- gets a slot.  Primitive slots are packed into a single
+ * byte array, in the big-endian format in which they appear in the stream; reference
+ * slots index an array of objects.
+ * </p>
+ *
+ * <p>
+ * The plan is a flat array of opcodes and operands that reads the class data of one
+ * instance (classdata[] in the protocol grammar).  The class hierarchy, the flag checks
+ * for each class and the per-field type switch are all resolved when the plan is
+ * compiled; adjacent primitive fields are merged into a single bulk read.
+ * </p>
+ *
+ * <p>
+ * A layout is computed once per class description (see ClassDescriptor.getLayout()),
+ * and is shared by all instances of that class.
+ * </p>
+ */
+public class ClassLayout {
+    /**
+     * Plan opcode: read operand 2 bytes of primitive data into Instance.primitiveData
+     * at offset operand 1.
+     */
+    public static final int OP_PRIMITIVES = 0;
+
+    /**
+     * Plan opcode: read an object reference into Instance.references[operand 1].
+     */
+    public static final int OP_OBJECT = 1;
+
+    /**
+     * Plan opcode: read an array reference into Instance.references[operand 1].
+     */
+    public static final int OP_ARRAY = 2;
+
+    /**
+     * Plan opcode: read the object annotations of classes[operand 1].
+     */
+    public static final int OP_ANNOTATIONS = 3;
+
+    /**
+     * Plan opcode: fail with an IOException whose message is failures[operand 1].
+     */
+    public static final int OP_FAIL = 4;
+
+    /**
+     * Plan opcode: fail with an EOFException whose message is failures[operand 1].
+     */
+    public static final int OP_FAIL_EOF = 5;
+
+    /**
+     * The class hierarchy, in the order in which class data is read.
+     */
+    public final ClassDescriptor[] classes;
+
+    /**
+     * The first slot of each class in classes; classFieldStart[classes.length] is the
+     * total number of slots.  Classes that aren't serializable have no slots.
+     */
+    public final int[] classFieldStart;
+
+    /**
+     * The field for each slot.
+     */
+    public final Field[] fields;
+
+    /**
+     * For primitive slots, the offset of the value in Instance.primitiveData; for
+     * reference slots, the index of the value in Instance.references.
+     */
+    public final int[] offsets;
+
+    /**
+     * The number of bytes of primitive data per instance.
+     */
+    public final int primitiveSize;
+
+    /**
+     * The number of reference slots per instance.
+     */
+    public final int referenceCount;
+
+    /**
+     * The decoding plan; see the OP_* constants.
+     */
+    public final int[] plan;
+
+    /**
+     * Messages for the OP_FAIL and OP_FAIL_EOF opcodes.
+     */
+    public final String[] failures;
+
+    /**
+     * Constructor.
+     *
+     * @param cd the class description to compute the layout for
+     */
+    public ClassLayout(ClassDescriptor cd) {
+        ArrayList<ClassDescriptor> hierarchy = new ArrayList<>();
+        cd.getHierarchy(hierarchy);
+        this.classes = hierarchy.toArray(new ClassDescriptor[0]);
+        this.classFieldStart = new int[classes.length + 1];
+        ArrayList<Field> slots = new ArrayList<>();
+        for (int i = 0; i < classes.length; i++) {
+            classFieldStart[i] = slots.size();
+            ClassDescriptor c = classes[i];
+            if ((c.descriptorFlags & ObjectStreamConstants.SC_SERIALIZABLE) != 0 && c.fields != null) {
+                for (Field f : c.fields) {
+                    slots.add(f);
+                }
+            }
+        }
+        classFieldStart[classes.length] = slots.size();
+        this.fields = slots.toArray(new Field[0]);
+        this.offsets = new int[fields.length];
+        int primitives = 0, references = 0;
+        for (int i = 0; i < fields.length; i++) {
+            FieldType type = fields[i].type;
+            if (type.isPrimitive()) {
+                offsets[i] = primitives;
+                primitives += type.width();
+            } else {
+                offsets[i] = references++;
+            }
+        }
+        this.primitiveSize = primitives;
+        this.referenceCount = references;
+
+        ArrayList<String> messages = new ArrayList<>();
+        int[] ops = new int[3 * fields.length + 2 * classes.length];
+        int n = 0;
+        // where the last OP_PRIMITIVES starts, if it's the last op; operands can be 0 too,
+        // so the opcode can't be told apart by its value alone
+        int lastPrimitives = -1;
+        for (int i = 0; i < classes.length; i++) {
+            ClassDescriptor c = classes[i];
+            if ((c.descriptorFlags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
+                if ((c.descriptorFlags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+                    n = fail(ops, n, OP_FAIL, messages, "SC_EXTERNALIZABLE & SC_SERIALIZABLE encountered");
+                    break;
+                }
+                for (int slot = classFieldStart[i]; slot < classFieldStart[i + 1]; slot++) {
+                    FieldType type = fields[slot].type;
+                    if (!type.isPrimitive()) {
+                        ops[n++] = type == FieldType.ARRAY ? OP_ARRAY : OP_OBJECT;
+                        ops[n++] = offsets[slot];
+                    } else if (lastPrimitives == n - 3 && ops[n - 2] + ops[n - 1] == offsets[slot]) {
+                        ops[n - 1] += type.width();
+                    } else {
+                        lastPrimitives = n;
+                        ops[n++] = OP_PRIMITIVES;
+                        ops[n++] = offsets[slot];
+                        ops[n++] = type.width();
+                    }
+                }
+                if ((c.descriptorFlags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+                    if ((c.descriptorFlags & ObjectStreamConstants.SC_ENUM) != 0) {
+                        n = fail(ops, n, OP_FAIL, messages, "SC_ENUM & SC_WRITE_METHOD encountered!");
+                        break;
+                    }
+                    ops[n++] = OP_ANNOTATIONS;
+                    ops[n++] = i;
+                }
+            } else if ((c.descriptorFlags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+                if ((c.descriptorFlags & ObjectStreamConstants.SC_BLOCK_DATA) != 0) {
+                    n = fail(ops, n, OP_FAIL_EOF, messages, "hit externalizable with nonzero SC_BLOCK_DATA; can't interpret data");
+                    break;
+                }
+                ops[n++] = OP_ANNOTATIONS;
+                ops[n++] = i;
+            }
+        }
+        this.plan = Arrays.copyOf(ops, n);
+        this.failures = messages.toArray(new String[0]);
+    }
+
+    /**
+     * Follows the plan from the given position up to the next op that the parser has to
+     * carry out itself: OP_OBJECT, OP_ARRAY or OP_ANNOTATIONS, which take two words each.
+     * Primitive data on the way is read, or skipped, and failure ops throw.
+     *
+     * @param pc the position in the plan to start at
+     * @param in the input
+     * @param primitives the instance's primitive data, or null to skip primitive data
+     * @return the position of the next op for the parser, or plan.length if the class
+     * data is complete
+     * @throws IOException if the data can't be read, or the plan fails
+     */
+    public int readPrimitives(int pc, DataInput in, byte[] primitives) throws IOException {
+        while (pc < plan.length) {
+            switch (plan[pc]) {
+                case OP_PRIMITIVES -> {
+                    if (primitives != null) {
+                        in.readFully(primitives, plan[pc + 1], plan[pc + 2]);
+                    } else {
+                        JDeserialize.skipFully(in, plan[pc + 2]);
+                    }
+                    pc += 3;
+                }
+                case OP_OBJECT, OP_ARRAY, OP_ANNOTATIONS -> {
+                    return pc;
+                }
+                case OP_FAIL_EOF -> throw new EOFException(failures[plan[pc + 1]]);
+                case OP_FAIL -> throw new IOException(failures[plan[pc + 1]]);
+                default -> throw new IllegalStateException("invalid decoding plan opcode: " + plan[pc]);
+            }
+        }
+        return pc;
+    }
+
+    private static int fail(int[] ops, int n, int op, ArrayList<String> messages, String message) {
+        ops[n++] = op;
+        ops[n++] = messages.size();
+        messages.add(message);
+        return n;
+    }
+
+    /**
+     * Finds the slot of a field.
+     *
+     * @param cd the class in the hierarchy that declares the field
+     * @param f the field
+     * @return the slot index, or -1 if the field isn't stored for instances of this
+     * layout
+     */
+    public int slotOf(ClassDescriptor cd, Field f) {
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i] == cd) {
+                for (int slot = classFieldStart[i]; slot < classFieldStart[i + 1]; slot++) {
+                    if (fields[slot] == f) {
+                        return slot;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slot of a field by name.  If several classes in the hierarchy declare a
+     * field with that name, the one in the most-derived class is returned.
+     *
+     * @param name the field name
+     * @return the slot index, or -1 if there's no such field
+     */
+    public int slotOf(String name) {
+        for (int slot = fields.length - 1; slot >= 0; slot--) {
+            if (fields[slot].name.equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,136 @@
+package org.unsynchronized;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Selects which instances (by class name) and which of their reference fields (by
+ * field name) the parser materializes; see JDeserialize.setFilter().  All patterns are
+ * String.matches()-style regular expressions.  The include and exclude lists of each kind
+ * are combined into a single Pattern, and the decision for each class description is
+ * made once and cached.
+ * </p>
+ *
+ * <p>
+ * A class is selected if it matches one of the include patterns (or there are none), and
+ * none of the exclude patterns.  Field patterns are matched against both the bare field
+ * name and the qualified name "declaringclass.field", and select fields the same way.
+ * </p>
+ */
+public class ContentFilter {
+    private final Pattern includeClasses;
+    private final Pattern excludeClasses;
+    private final Pattern includeFields;
+    private final Pattern excludeFields;
+    private final IdentityHashMap<ClassDescriptor, Boolean> classDecisions = new IdentityHashMap<>();
+    private final IdentityHashMap<ClassDescriptor, boolean[]> referenceDecisions = new IdentityHashMap<>();
+
+    /**
+     * Constructor.  Each list may be null or empty.
+     *
+     * @param includeClasses patterns of class names to include
+     * @param excludeClasses patterns of class names to exclude
+     * @param includeFields patterns of field names to include
+     * @param excludeFields patterns of field names to exclude
+     */
+    public ContentFilter(List<String> includeClasses, List<String> excludeClasses, List<String> includeFields, List<String> excludeFields) {
+        this.includeClasses = compile(includeClasses);
+        this.excludeClasses = compile(excludeClasses);
+        this.includeFields = compile(includeFields);
+        this.excludeFields = compile(excludeFields);
+    }
+
+    private static Pattern compile(List<String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String p : patterns) {
+            if (!sb.isEmpty()) {
+                sb.append('|');
+            }
+            sb.append("(?:").append(p).append(')');
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    private ContentFilter(ContentFilter filter) {
+        this.includeClasses = filter.includeClasses;
+        this.excludeClasses = filter.excludeClasses;
+        this.includeFields = filter.includeFields;
+        this.excludeFields = filter.excludeFields;
+    }
+
+    /**
+     * Returns a filter with the same patterns, but without the decisions cached so far.
+     * Filters aren't thread-safe; each parser thread needs its own copy.
+     *
+     * @return the new filter
+     */
+    public ContentFilter copy() {
+        return new ContentFilter(this);
+    }
+
+    /**
+     * Determines whether this filter selects everything.
+     *
+     * @return true if no patterns were given
+     */
+    public boolean isEmpty() {
+        return includeClasses == null && excludeClasses == null && includeFields == null && excludeFields == null;
+    }
+
+    /**
+     * Determines whether instances of a class are materialized.
+     *
+     * @param cd the instance's class description
+     * @return true if the class is selected
+     */
+    public boolean selects(ClassDescriptor cd) {
+        Boolean decision = classDecisions.get(cd);
+        if (decision == null) {
+            decision = selects(includeClasses, excludeClasses, cd.name, null);
+            classDecisions.put(cd, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Determines, for each reference field of a class, whether the field's value is
+     * materialized.  Primitive fields are always kept, since they're stored in the packed
+     * primitive data anyway.
+     *
+     * @param cd the instance's class description
+     * @return an array indexed like Instance.references; true if the field is selected
+     */
+    public boolean[] selectedReferences(ClassDescriptor cd) {
+        boolean[] decisions = referenceDecisions.get(cd);
+        if (decisions == null) {
+            ClassLayout layout = cd.getLayout();
+            decisions = new boolean[layout.referenceCount];
+            for (int i = 0; i < layout.classes.length; i++) {
+                for (int slot = layout.classFieldStart[i]; slot < layout.classFieldStart[i + 1]; slot++) {
+                    Field f = layout.fields[slot];
+                    if (!f.type.isPrimitive()) {
+                        decisions[layout.offsets[slot]] = selects(includeFields, excludeFields, f.name, layout.classes[i].name + "." + f.name);
+                    }
+                }
+            }
+            referenceDecisions.put(cd, decisions);
+        }
+        return decisions;
+    }
+
+    private static boolean selects(Pattern include, Pattern exclude, String name, String qualifiedName) {
+        if (include != null && !matches(include, name, qualifiedName)) {
+            return false;
+        }
+        return exclude == null || !matches(exclude, name, qualifiedName);
+    }
+
+    private static boolean matches(Pattern pattern, String name, String qualifiedName) {
+        return pattern.matcher(name).matches() || (qualifiedName != null && pattern.matcher(qualifiedName).matches());
+    }
+}
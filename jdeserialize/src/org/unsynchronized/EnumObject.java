@@ -14,7 +14,8 @@ public class EnumObject extends Content {
     public ClassDescriptor classDescriptor;
 
     /**
-     * The string that represents the enum's value.
+     * The string that represents the enum's value; null if it refers to a string that
+     * the content filter skipped.
      */
     public StringObject value;
 
@@ -33,6 +34,6 @@ public class EnumObject extends Content {
     }
 
     public String toString() {
-        return "[enum " + JDeserialize.hex(handle) + ": " + value.value + "]";
+        return "[enum " + JDeserialize.hex(handle) + ": " + (value == null ? null : value.getValue()) + "]";
     }
 }
@@ -24,7 +24,7 @@ public class ExceptionState extends Content {
      * An array of bytes representing the data read before the exception was encountered.
      * Generally, this starts with the first "tc" byte (cf. protocol spec), which is an
      * ObjectStreamConstants value and ends with 0x78 (the tc byte corresponding to
-     * TC_EXCEPTION).  However, this isn't guaranteed; it may include *more* data.  
+     * TC_EXCEPTION).  However, this isn't guaranteed.
      * </p>
      *
      * <p>
@@ -34,10 +34,10 @@ public class ExceptionState extends Content {
      * </p>
      *
      * <p>
-     * The uncertainty centers around the fact that this data is gathered by jdeserialize
-     * using a LoggerInputStream, and the underlying DataInputStream may have read more
-     * than is necessary.  In all tests conducted so far, the above description is
-     * accurate.
+     * The data is taken from the input between the offset at which the top-level
+     * content started and the offset at which the exception object was read; it is
+     * sliced or re-read from the source (or, for unseekable streams, recorded) only
+     * when an exception actually turns up.
      * </p>
      */
     public byte[] data;
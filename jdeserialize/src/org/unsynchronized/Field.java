@@ -25,6 +25,14 @@ public class Field {
 
     private boolean isInnerClassReference = false;
 
+    /**
+     * The class name value that javaType was resolved from.  Type name strings can be
+     * shared between fields, so the cache is checked against the current value instead
+     * of being cleared by setReferenceTypeName().
+     */
+    private String resolvedFrom;
+    private String javaType;
+
     /**
      * Tells whether or not this class is an inner class reference.  This value is set by
      * connectMemberClasses() -- if this hasn't been called, or if the field hasn't been
@@ -57,7 +65,7 @@ public class Field {
         this.name = name;
         this.className = className;
         if (className != null) {
-            validate(className.value);
+            validate(className.getValue());
         }
     }
 
@@ -74,11 +82,20 @@ public class Field {
     /**
      * Get a string representing the type for this field in Java (the language)
      * format.
-     * @return a string representing the fully-qualified type of the field
+     * @return a string representing the fully-qualified type of the field; a reference
+     * field whose class name refers to a string that wasn't kept is typed as Object
      * @throws IOException if a validity or I/O error occurs
      */
     public String getJavaType() throws IOException {
-        return JDeserialize.resolveJavaType(this.type, this.className == null ? null : this.className.value, true, false);
+        if (this.className == null && !this.type.isPrimitive()) {
+            return "java.lang.Object";
+        }
+        String name = this.className == null ? null : this.className.getValue();
+        if (javaType == null || name != resolvedFrom) {
+            javaType = JDeserialize.resolveJavaType(this.type, name, true, false);
+            resolvedFrom = name;
+        }
+        return javaType;
     }
 
     /**
@@ -92,7 +109,7 @@ public class Field {
         if (this.type != FieldType.OBJECT) {
             throw new ValidityException("can't fix up a non-reference field!");
         }
-        this.className.value = "L" + name.replace('.', '/') + ";";
+        this.className.setValue("L" + name.replace('.', '/') + ";");
     }
 
     /**
@@ -107,11 +124,11 @@ public class Field {
                 throw new ValidityException("classname can't be null");
             }
             if (name.charAt(0) != 'L') {
-                throw new ValidityException("invalid object field type descriptor: " + className.value);
+                throw new ValidityException("invalid object field type descriptor: " + className.getValue());
             }
             int end = name.indexOf(';');
             if (end == -1 || end != (name.length() - 1)) {
-                throw new ValidityException("invalid object field type descriptor (must end with semicolon): " + className.value);
+                throw new ValidityException("invalid object field type descriptor (must end with semicolon): " + className.getValue());
             }
         }
     }
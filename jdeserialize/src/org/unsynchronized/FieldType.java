@@ -1,5 +1,9 @@
 package org.unsynchronized;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 /**
  * <p>
  * Enum class that describes the type of a field encoded inside a classdesc description.
@@ -11,18 +15,19 @@ package org.unsynchronized;
  * </p>
  */
 public enum FieldType {
-    BYTE ('B', "byte"),
-    CHAR ('C', "char"),
-    DOUBLE ('D', "double"), 
-    FLOAT ('F', "float"),
-    INTEGER ('I', "int"),
-    LONG ('J', "long"),
-    SHORT ('S', "String"),
-    BOOLEAN ('Z', "boolean"),
+    BYTE ('B', "byte", 1),
+    CHAR ('C', "char", 2),
+    DOUBLE ('D', "double", 8), 
+    FLOAT ('F', "float", 4),
+    INTEGER ('I', "int", 4),
+    LONG ('J', "long", 8),
+    SHORT ('S', "String", 2),
+    BOOLEAN ('Z', "boolean", 1),
     ARRAY ('['),
     OBJECT ('L');
     private final char ch;
     private final String javatype;
+    private final int width;
 
     /**
      * Constructor for non-object (primitive) types.
@@ -31,7 +36,7 @@ public enum FieldType {
      * prim_typecode or obj_typecode in the Object Serialization Stream Protocol)
      */
     FieldType(char ch) {
-        this(ch, null);
+        this(ch, null, 0);
     }
 
     /**
@@ -40,10 +45,13 @@ public enum FieldType {
      * @param ch the character representing the type (must match one of those listed in
      * prim_typecode or obj_typecode in the Object Serialization Stream Protocol)
      * @param javatype the name of the object class, where applicable (or null if not)
+     * @param width the number of bytes a value occupies in the stream, or 0 for
+     * reference types
      */
-    FieldType(char ch, String javatype) {
+    FieldType(char ch, String javatype, int width) {
         this.ch = ch;
         this.javatype = javatype;
+        this.width = width;
     }
 
     /**
@@ -64,6 +72,57 @@ public enum FieldType {
      */
     public char ch() { return ch; }
 
+    /**
+     * Gets the number of bytes a value of this type occupies in the stream.
+     *
+     * @return the width of the primitive type, or 0 for reference/array types
+     */
+    public int width() { return width; }
+
+    /**
+     * Determines whether this is one of the primitive types.
+     *
+     * @return true iff values of this type are written as raw primitive data
+     */
+    public boolean isPrimitive() { return width != 0; }
+
+    /**
+     * Decodes a primitive value of this type from its big-endian stream representation.
+     *
+     * @param data the buffer holding the value
+     * @param offset the offset of the value's first byte
+     * @return the boxed value
+     * @throws IllegalStateException if this isn't a primitive type
+     */
+    public Object decode(byte[] data, int offset) {
+        switch (this) {
+            case BYTE:
+                return data[offset];
+            case CHAR:
+                return (char) (short) SHORT_VIEW.get(data, offset);
+            case DOUBLE:
+                return (double) DOUBLE_VIEW.get(data, offset);
+            case FLOAT:
+                return (float) FLOAT_VIEW.get(data, offset);
+            case INTEGER:
+                return (int) INT_VIEW.get(data, offset);
+            case LONG:
+                return (long) LONG_VIEW.get(data, offset);
+            case SHORT:
+                return (short) SHORT_VIEW.get(data, offset);
+            case BOOLEAN:
+                return data[offset] != 0;
+            default:
+                throw new IllegalStateException("not a primitive type: " + this);
+        }
+    }
+
+    private static final VarHandle SHORT_VIEW = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle FLOAT_VIEW = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLE_VIEW = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+
     /**
      * Given a byte containing a type code, return the corresponding enum.
      *
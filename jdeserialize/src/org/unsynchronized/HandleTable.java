@@ -0,0 +1,113 @@
+package org.unsynchronized;
+
+import java.io.ObjectStreamConstants;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Dense, array-backed handle table.  The content for handle h is stored at index
+ * h - ObjectStreamConstants.baseWireHandle, so lookups don't box the handle or hash it,
+ * and the table costs one reference per handle.
+ */
+public class HandleTable implements IHandleTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private IContent[] entries = new IContent[INITIAL_CAPACITY];
+    private int limit;
+    private int size;
+
+    public IContent get(int handle) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        if (index < 0 || index >= limit) {
+            return null;
+        }
+        return entries[index];
+    }
+
+    public void put(int handle, IContent content) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        if (index < 0) {
+            throw new IllegalArgumentException("handle below baseWireHandle: " + JDeserialize.hex(handle));
+        }
+        if (index >= entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(entries.length * 2, index + 1));
+        }
+        if (entries[index] == null) {
+            size++;
+        }
+        entries[index] = content;
+        if (index >= limit) {
+            limit = index + 1;
+        }
+    }
+
+    public void completed(int handle) {
+    }
+
+    public void remove(int handle) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        if (index >= 0 && index < limit && entries[index] != null) {
+            entries[index] = null;
+            size--;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(entries, 0, limit, null);
+        limit = 0;
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Collection<IContent> values() {
+        return new AbstractCollection<>() {
+            public Iterator<IContent> iterator() {
+                return new Iterator<>() {
+                    private int index = advance(0);
+
+                    private int advance(int from) {
+                        while (from < limit && entries[from] == null) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    public boolean hasNext() {
+                        return index < limit;
+                    }
+
+                    public IContent next() {
+                        if (index >= limit) {
+                            throw new NoSuchElementException();
+                        }
+                        IContent c = entries[index];
+                        index = advance(index + 1);
+                        return c;
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public Map<Integer, IContent> toMap() {
+        HashMap<Integer, IContent> map = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < limit; i++) {
+            if (entries[i] != null) {
+                map.put(i + ObjectStreamConstants.baseWireHandle, entries[i]);
+            }
+        }
+        return map;
+    }
+}
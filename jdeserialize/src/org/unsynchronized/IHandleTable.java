@@ -0,0 +1,75 @@
+package org.unsynchronized;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>
+ * Storage for the objects that have been assigned a handle in the current logical
+ * stream (i.e. since the last TC_RESET).  Every readNewXXX() method of JDeserialize
+ * files its result here, and TC_REFERENCE entries are resolved against it.
+ * </p>
+ *
+ * <p>
+ * Handles are assigned sequentially, starting at ObjectStreamConstants.baseWireHandle,
+ * so implementations are free to use dense storage.
+ * </p>
+ */
+public interface IHandleTable {
+    /**
+     * Gets the content that was assigned the given handle.
+     *
+     * @param handle the handle, as found in the stream
+     * @return the content, or null if no content has been assigned that handle
+     */
+    IContent get(int handle);
+
+    /**
+     * Assigns content to a handle.  Callers must ensure that the handle isn't taken.
+     *
+     * @param handle the handle; must not be less than ObjectStreamConstants.baseWireHandle
+     * @param content the content to store
+     */
+    void put(int handle, IContent content);
+
+    /**
+     * Tells the table that the content of an instance or array is complete: its field
+     * values, elements and annotations have all been read, and won't change any more.
+     * Instances and arrays are stored with put() before their content is read, since
+     * their content may refer to them.
+     *
+     * @param handle the handle of the instance or array
+     */
+    void completed(int handle);
+
+    /**
+     * Removes the content of a handle, if there is any.
+     *
+     * @param handle the handle, as found in the stream
+     */
+    void remove(int handle);
+
+    /**
+     * Removes every entry from the table.
+     */
+    void clear();
+
+    /**
+     * @return true iff no handle has been assigned any content
+     */
+    boolean isEmpty();
+
+    /**
+     * Gets a live view of all content in the table, in ascending handle order.
+     *
+     * @return a collection of the stored content
+     */
+    Collection<IContent> values();
+
+    /**
+     * Copies the table into a new map.
+     *
+     * @return a map of handles to content that is independent of this table
+     */
+    Map<Integer, IContent> toMap();
+}
@@ -0,0 +1,24 @@
+package org.unsynchronized;
+
+/**
+ * <p>
+ * Receives the top-level items of a stream from JDeserialize as soon as each one has
+ * been read; see JDeserialize.setItemListener().  Items that are handed to a listener
+ * are not added to getContent() (nor to the content passed to an ISegmentListener), so
+ * the parser doesn't keep them alive once the listener is done with them.
+ * </p>
+ *
+ * <p>
+ * Content that an item shares with later items is complete when the item is handed
+ * over; later items only refer to it.
+ * </p>
+ */
+public interface IItemListener {
+    /**
+     * Called for every top-level item that isn't null.
+     *
+     * @param content the item; a serialized exception is passed as an ExceptionState
+     * @param offset the input offset of the item's typecode
+     */
+    void itemRead(IContent content, long offset);
+}
@@ -0,0 +1,39 @@
+package org.unsynchronized;
+
+/**
+ * Receives the handles assigned by a StreamScanner; see StreamScanner.setListener().
+ * Handles are reported in the order they are assigned, which is the order of their
+ * typecodes in the stream for everything but class descriptions and objects whose class
+ * description is given inline.  The position of a handle in that order is its ordinal:
+ * the first handle the scanner assigns has ordinal 0, whatever its value.
+ */
+public interface IScanListener {
+    /**
+     * Called whenever the scanner assigns a handle.
+     *
+     * @param handle the handle
+     * @param tc the typecode of the content the handle was assigned to (an
+     * ObjectStreamConstants TC_* value)
+     * @param offset the input offset of that typecode
+     * @param className the name of the class of an object, array, enum constant or class,
+     * or the name a class description describes; null for strings
+     */
+    void assigned(int handle, byte tc, long offset, String className);
+
+    /**
+     * Called when the content of a handle ends, including everything nested in it.  This
+     * isn't called for content that was interrupted by a serialized exception.
+     *
+     * @param ordinal the ordinal of the handle
+     * @param offset the input offset just after the content
+     */
+    void finished(long ordinal, long offset);
+
+    /**
+     * Called for every TC_REFERENCE.
+     *
+     * @param ordinal the ordinal of the handle that is referred to
+     * @param offset the input offset of the TC_REFERENCE typecode
+     */
+    void referenced(long ordinal, long offset);
+}
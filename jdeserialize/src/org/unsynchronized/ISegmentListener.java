@@ -0,0 +1,29 @@
+package org.unsynchronized;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Receives the segments of a stream from JDeserialize as they are completed; see
+ * JDeserialize.setSegmentListener().  A segment ends whenever the handle table is
+ * cleared: at a TC_RESET, around a serialized exception, and at the end of the stream.
+ * </p>
+ *
+ * <p>
+ * The listener is called before JDeserialize decides whether to keep the segment (see
+ * JDeserialize.setRetainedSegments()), so it sees every segment even if none are kept.
+ * </p>
+ */
+public interface ISegmentListener {
+    /**
+     * Called when a segment ends.
+     *
+     * @param handles the content of the segment by handle, as it would be added to
+     * getHandleMaps()
+     * @param content the top-level items read since the previous segment ended, as they
+     * were added to getContent(); the content of a serialized exception goes with the
+     * segment after it, since the exception ends a segment before it is filed
+     */
+    void segmentEnded(Map<Integer, IContent> handles, List<IContent> content);
+}
@@ -0,0 +1,62 @@
+package org.unsynchronized;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * <p>
+ * A source of serialized stream data.  In addition to the primitive reads of DataInput,
+ * an ISerialInput knows its position in the stream, so that the parser can refer back
+ * to the bytes that made up an object (e.g. the data that was written before a
+ * serialized exception).
+ * </p>
+ *
+ * <p>
+ * Implementations are not thread-safe; they're meant to be used by a single parser.
+ * </p>
+ */
+public interface ISerialInput extends DataInput, Closeable {
+    /**
+     * Returns the number of bytes that have been read so far.
+     *
+     * @return the current offset from the start of the input
+     */
+    long position();
+
+    /**
+     * Returns the total length of the input, if known.
+     *
+     * @return the length in bytes, or -1 if the length isn't known in advance
+     */
+    long length();
+
+    /**
+     * Tells the input that getBytes() won't be asked for anything before the given
+     * offset, which must be the current position.  Inputs that can't go back to earlier
+     * data start keeping a copy of what is read from here on; inputs that can re-read
+     * or slice their source ignore this.
+     *
+     * @param start the earliest offset that getBytes() may be asked for
+     */
+    void retainFrom(long start);
+
+    /**
+     * Returns a copy of the bytes between two offsets that have already been read.
+     *
+     * @param start offset of the first byte; not before the last retainFrom() offset
+     * @param end offset just past the last byte; must not be greater than position()
+     * @return the bytes in the given range
+     * @throws IOException if the range is invalid or can no longer be read
+     */
+    byte[] getBytes(long start, long end) throws IOException;
+
+    /**
+     * Tells whether getBytes() can return any range of the input at any time: regardless
+     * of retainFrom(), and even after the input has been closed.  If so, the parser may
+     * leave large data in the input and fetch it only when it is asked for.
+     *
+     * @return true if every range stays available for the lifetime of this object
+     */
+    boolean isPersistent();
+}
@@ -0,0 +1,29 @@
+package org.unsynchronized;
+
+/**
+ * <p>
+ * Receives structured trace events from JDeserialize; see
+ * JDeserialize.setTraceListener().  Every event is described by a handful of primitives
+ * and a class name that the parser already holds, so reporting an event doesn't allocate
+ * anything, and nothing at all is done when no listener is installed.
+ * </p>
+ *
+ * <p>
+ * Listeners are called synchronously from the parser, so they should be quick; see
+ * TraceRingBuffer for a listener that is cheap enough to leave on.
+ * </p>
+ */
+public interface ITraceListener {
+    /**
+     * Called for each event.
+     *
+     * @param event the kind of event
+     * @param tc the typecode that started the item (an ObjectStreamConstants TC_* value)
+     * @param handle the handle of the item, or -1 if it has none
+     * @param offset the offset in the input just after the item's header, or -1 if the
+     * input doesn't report offsets
+     * @param className the name of the item's class, or null if it has none
+     * @param size a count whose meaning depends on the event (see TraceEvent), or 0
+     */
+    void trace(TraceEvent event, byte tc, int handle, long offset, String className, long size);
+}
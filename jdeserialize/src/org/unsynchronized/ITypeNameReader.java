@@ -0,0 +1,18 @@
+package org.unsynchronized;
+
+import java.io.IOException;
+
+/**
+ * Reads the type name string of an object or array field for
+ * ClassDescriptor.readClassDesc(); each parser resolves the string, which may be a
+ * TC_REFERENCE to an earlier one, against its own handles.
+ */
+public interface ITypeNameReader {
+    /**
+     * Reads a type name, starting at its typecode.
+     *
+     * @return the string, or null if it refers to a string the parser didn't keep
+     * @throws IOException if the string can't be read, or isn't valid
+     */
+    StringObject readTypeName() throws IOException;
+}
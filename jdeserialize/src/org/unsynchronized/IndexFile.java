@@ -0,0 +1,575 @@
+package org.unsynchronized;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * A sidecar index for a serialized stream, so that single items and objects of a big
+ * stream can be read again without parsing the stream from the start.  build() scans the
+ * stream once with a StreamScanner and writes the index file; open() maps an index file,
+ * and JDeserialize.readItem() and readHandle() use it to parse only the segment that
+ * contains what was asked for, while LazyGraph uses it to decode single objects.
+ * </p>
+ *
+ * <p>
+ * The file holds three tables.  The handle table lists every handle the stream assigns,
+ * in order, with the offsets where its content starts and ends, its typecode and its
+ * class; handles are identified by their position in this table (their ordinal), since
+ * handle values are reused after every reset.  With the end of the content and the
+ * ordinal of the next handle assigned after it, a reader can skip over nested content
+ * without parsing it, which is what LazyGraph does.  The item table is a StreamIndex, plus the ordinal of the
+ * first handle of each item.  Finally, the class table maps every class name to the
+ * ordinals of the objects, arrays, enum constants and classes of that class.
+ * </p>
+ *
+ * <p>
+ * The handle table has fixed-size entries and is read on demand from the mapping, so
+ * opening an index only loads the item and class tables into memory.  The layout, with
+ * all numbers big-endian:
+ * </p>
+ * <pre>
+ *   header:   int magic, int version, long stream length
+ *   handles:  per handle: long offset, long end offset, long end ordinal, int handle,
+ *             byte tc, int class (-1 for none); the end offset and ordinal are -1 if
+ *             the content was interrupted by an exception
+ *   items:    per item: long offset, byte tc, int first handle, int end handle,
+ *             int class (-1 for none), long ordinal of the first handle
+ *   classes:  per class: UTF name, long start in postings, int count
+ *   postings: long handle ordinals, grouped by class, in stream order
+ *   trailer:  long handle count, long items offset, long classes offset,
+ *             long postings offset, long end offset of the stream,
+ *             int item count, int class count, int magic
+ * </pre>
+ */
+public class IndexFile implements Closeable {
+    /**
+     * The suffix that -buildindex appends to the name of a stream to name its index.
+     */
+    public static final String SUFFIX = ".jdx";
+
+    private static final int MAGIC = 0x4a444958;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int HANDLE_SIZE = 33;
+    private static final int WINDOW_HANDLES = 65536;
+    private static final int ITEM_SIZE = 29;
+    private static final int TRAILER_SIZE = 52;
+
+    private final MappedInput file;
+    private final long streamLength;
+    private final long handleCount;
+    private final StreamIndex index;
+    private final long[] itemOrdinals;
+    private final String[] classNames;
+    private final HashMap<String, Integer> classIndexes = new HashMap<>();
+    private final long[] postingStarts;
+    private final int[] postingCounts;
+    private final long postingsOffset;
+
+    /**
+     * Collects the handle table and class names while the stream is scanned.  The most
+     * recent entries of the handle table are kept in a window, where the end of their
+     * content is filled in when the scanner gets there; entries that have already left
+     * the window (those of big objects and arrays) are patched in the file.
+     */
+    private static final class Builder implements IScanListener {
+        final FileChannel channel;
+        final ByteBuffer window = ByteBuffer.allocate(HANDLE_SIZE * WINDOW_HANDLES);
+        final ByteBuffer patch = ByteBuffer.allocate(16);
+        final HashMap<String, Integer> classIndexes = new HashMap<>();
+        final ArrayList<String> classNames = new ArrayList<>();
+        int[] counts = new int[16];
+        long handleCount;
+        long windowStart;
+
+        Builder(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public void assigned(int handle, byte tc, long offset, String className) {
+            int cls = classIndex(className);
+            // class descriptions are listed under their name, but aren't instances of it
+            if (cls >= 0 && tc != ObjectStreamConstants.TC_CLASSDESC && tc != ObjectStreamConstants.TC_PROXYCLASSDESC) {
+                counts[cls]++;
+            }
+            if (!window.hasRemaining()) {
+                flushWindow();
+            }
+            window.putLong(offset).putLong(-1).putLong(-1).putInt(handle).put(tc).putInt(cls);
+            handleCount++;
+        }
+
+        public void finished(long ordinal, long offset) {
+            if (ordinal >= windowStart) {
+                int position = (int) (ordinal - windowStart) * HANDLE_SIZE + 8;
+                window.putLong(position, offset).putLong(position + 8, handleCount);
+                return;
+            }
+            patch.putLong(offset).putLong(handleCount);
+            try {
+                flush(channel, patch, HEADER_SIZE + ordinal * HANDLE_SIZE + 8);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        public void referenced(long ordinal, long offset) {
+        }
+
+        /**
+         * Writes out the entries in the window, and starts a new one.
+         */
+        void flushWindow() {
+            try {
+                flush(channel, window, HEADER_SIZE + windowStart * HANDLE_SIZE);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            windowStart = handleCount;
+        }
+
+        int classIndex(String className) {
+            if (className == null) {
+                return -1;
+            }
+            Integer cls = classIndexes.get(className);
+            if (cls == null) {
+                cls = classNames.size();
+                classNames.add(className);
+                classIndexes.put(className, cls);
+                if (cls == counts.length) {
+                    counts = Arrays.copyOf(counts, cls * 2);
+                }
+            }
+            return cls;
+        }
+    }
+
+    /**
+     * Scans a stream and writes its index.
+     *
+     * @param stream the serialized stream
+     * @param path the index file to write; an existing file is replaced
+     * @throws IOException if an error occurs while reading or writing, or the stream is
+     * invalid; see StreamScanner for the limitations of the scan
+     */
+    public static void build(Path stream, Path path) throws IOException {
+        try (MappedInput input = new MappedInput(stream);
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(input.length());
+            dos.flush();
+
+            Builder builder = new Builder(channel);
+            StreamIndex index = new StreamIndex();
+            long[] itemOrdinals = new long[64];
+            StreamScanner scanner = new StreamScanner(input);
+            scanner.setListener(builder);
+            try {
+                while (true) {
+                    long ordinal = builder.handleCount;
+                    if (!scanner.next()) {
+                        break;
+                    }
+                    if (index.size() == itemOrdinals.length) {
+                        itemOrdinals = Arrays.copyOf(itemOrdinals, itemOrdinals.length * 2);
+                    }
+                    itemOrdinals[index.size()] = ordinal;
+                    index.add(scanner);
+                }
+                builder.flushWindow();
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+            long endOffset = input.position();
+            index.setEndOffset(endOffset);
+
+            long itemsOffset = HEADER_SIZE + builder.handleCount * HANDLE_SIZE;
+            channel.position(itemsOffset);
+            for (int n = 0; n < index.size(); n++) {
+                dos.writeLong(index.getOffset(n));
+                dos.writeByte(index.getTypecode(n));
+                dos.writeInt(index.getFirstHandle(n));
+                dos.writeInt(index.getEndHandle(n));
+                dos.writeInt(builder.classIndex(index.getClassName(n)));
+                dos.writeLong(itemOrdinals[n]);
+            }
+
+            long classesOffset = itemsOffset + (long) index.size() * ITEM_SIZE;
+            int classCount = builder.classNames.size();
+            long[] starts = new long[classCount];
+            long postingCount = 0;
+            for (int cls = 0; cls < classCount; cls++) {
+                starts[cls] = postingCount;
+                postingCount += builder.counts[cls];
+                dos.writeUTF(builder.classNames.get(cls));
+                dos.writeLong(starts[cls]);
+                dos.writeInt(builder.counts[cls]);
+            }
+            dos.flush();
+            long postingsOffset = channel.position();
+
+            writePostings(channel, builder.handleCount, starts, postingsOffset);
+
+            channel.position(postingsOffset + postingCount * 8);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(builder.handleCount).putLong(itemsOffset).putLong(classesOffset).putLong(postingsOffset);
+            trailer.putLong(endOffset);
+            trailer.putInt(index.size()).putInt(classCount).putInt(MAGIC);
+            trailer.flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+        }
+    }
+
+    /**
+     * Fills in the postings, by reading back the handle table that was just written.
+     * Every class gets a small buffer, which is written out whenever it's full, so this
+     * takes memory per class rather than per handle.
+     */
+    private static void writePostings(FileChannel channel, long handleCount, long[] starts, long postingsOffset) throws IOException {
+        int classCount = starts.length;
+        ByteBuffer[] buffers = new ByteBuffer[classCount];
+        long[] positions = new long[classCount];
+        for (int cls = 0; cls < classCount; cls++) {
+            positions[cls] = postingsOffset + starts[cls] * 8;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(HANDLE_SIZE * 4096);
+        long position = HEADER_SIZE;
+        long end = HEADER_SIZE + handleCount * HANDLE_SIZE;
+        long ordinal = 0;
+        while (position < end) {
+            entries.clear();
+            entries.limit((int) Math.min(entries.capacity(), end - position));
+            while (entries.hasRemaining()) {
+                if (channel.read(entries, position + entries.position()) < 0) {
+                    throw new IOException("index file truncated while writing");
+                }
+            }
+            entries.flip();
+            while (entries.hasRemaining()) {
+                entries.position(entries.position() + 28);
+                byte tc = entries.get();
+                int cls = entries.getInt();
+                if (cls >= 0 && tc != ObjectStreamConstants.TC_CLASSDESC && tc != ObjectStreamConstants.TC_PROXYCLASSDESC) {
+                    if (buffers[cls] == null) {
+                        buffers[cls] = ByteBuffer.allocate(4096);
+                    }
+                    buffers[cls].putLong(ordinal);
+                    if (!buffers[cls].hasRemaining()) {
+                        positions[cls] += flush(channel, buffers[cls], positions[cls]);
+                    }
+                }
+                ordinal++;
+            }
+            position += entries.limit();
+        }
+        for (int cls = 0; cls < classCount; cls++) {
+            if (buffers[cls] != null) {
+                positions[cls] += flush(channel, buffers[cls], positions[cls]);
+            }
+        }
+    }
+
+    private static int flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int n = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        buffer.clear();
+        return n;
+    }
+
+    /**
+     * Opens an index file.
+     *
+     * @param path the index file
+     * @return the index
+     * @throws IOException if the file can't be read, or isn't an index file
+     */
+    public static IndexFile open(Path path) throws IOException {
+        MappedInput file = new MappedInput(path);
+        try {
+            return new IndexFile(file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private IndexFile(MappedInput file) throws IOException {
+        this.file = file;
+        if (file.length() < HEADER_SIZE + TRAILER_SIZE || file.readInt() != MAGIC) {
+            throw new ValidityException("not an index file");
+        }
+        int version = file.readInt();
+        if (version != VERSION) {
+            throw new ValidityException("unsupported index file version: " + version);
+        }
+        streamLength = file.readLong();
+
+        file.seek(file.length() - TRAILER_SIZE);
+        handleCount = file.readLong();
+        long itemsOffset = file.readLong();
+        long classesOffset = file.readLong();
+        postingsOffset = file.readLong();
+        long endOffset = file.readLong();
+        int itemCount = file.readInt();
+        int classCount = file.readInt();
+        if (file.readInt() != MAGIC) {
+            throw new ValidityException("index file is truncated");
+        }
+
+        file.seek(classesOffset);
+        classNames = new String[classCount];
+        postingStarts = new long[classCount];
+        postingCounts = new int[classCount];
+        for (int cls = 0; cls < classCount; cls++) {
+            classNames[cls] = file.readUTF();
+            postingStarts[cls] = file.readLong();
+            postingCounts[cls] = file.readInt();
+            classIndexes.put(classNames[cls], cls);
+        }
+
+        file.seek(itemsOffset);
+        index = new StreamIndex();
+        itemOrdinals = new long[itemCount];
+        for (int n = 0; n < itemCount; n++) {
+            long offset = file.readLong();
+            byte tc = file.readByte();
+            int firstHandle = file.readInt();
+            int endHandle = file.readInt();
+            int cls = file.readInt();
+            itemOrdinals[n] = file.readLong();
+            index.add(offset, tc, firstHandle, endHandle, null, cls < 0 ? null : classNames[cls]);
+        }
+        index.setEndOffset(endOffset);
+    }
+
+    /**
+     * @return the length of the stream the index was built from; JDeserialize checks
+     * this before using the index
+     */
+    public long getStreamLength() {
+        return streamLength;
+    }
+
+    /**
+     * @return the index of the top-level items
+     */
+    public StreamIndex getStreamIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of handles the stream assigns
+     */
+    public long getHandleCount() {
+        return handleCount;
+    }
+
+    /**
+     * @param ordinal the position of the handle in the stream, from 0 to
+     * getHandleCount() - 1
+     * @return the input offset of the typecode of the handle's content
+     * @throws IOException if the index file can't be read
+     */
+    public long getHandleOffset(long ordinal) throws IOException {
+        seekHandle(ordinal, 0);
+        return file.readLong();
+    }
+
+    /**
+     * @param ordinal the position of the handle in the stream
+     * @return the input offset just after the handle's content, including everything
+     * nested in it; or -1 if the content was interrupted by a serialized exception
+     * @throws IOException if the index file can't be read
+     */
+    public long getHandleEndOffset(long ordinal) throws IOException {
+        seekHandle(ordinal, 8);
+        return file.readLong();
+    }
+
+    /**
+     * @param ordinal the position of the handle in the stream
+     * @return the ordinal of the next handle assigned after the handle's content (which
+     * may be getHandleCount()); or -1 if the content was interrupted by a serialized
+     * exception
+     * @throws IOException if the index file can't be read
+     */
+    public long getHandleEndOrdinal(long ordinal) throws IOException {
+        seekHandle(ordinal, 16);
+        return file.readLong();
+    }
+
+    /**
+     * @param ordinal the position of the handle in the stream
+     * @return the handle value
+     * @throws IOException if the index file can't be read
+     */
+    public int getHandle(long ordinal) throws IOException {
+        seekHandle(ordinal, 24);
+        return file.readInt();
+    }
+
+    /**
+     * @param ordinal the position of the handle in the stream
+     * @return the typecode of the handle's content
+     * @throws IOException if the index file can't be read
+     */
+    public byte getHandleTypecode(long ordinal) throws IOException {
+        seekHandle(ordinal, 28);
+        return file.readByte();
+    }
+
+    /**
+     * @param ordinal the position of the handle in the stream
+     * @return the class name of the handle's content, as reported by the scanner (see
+     * IScanListener), or null for strings
+     * @throws IOException if the index file can't be read
+     */
+    public String getHandleClassName(long ordinal) throws IOException {
+        seekHandle(ordinal, 29);
+        int cls = file.readInt();
+        return cls < 0 ? null : classNames[cls];
+    }
+
+    private void seekHandle(long ordinal, int field) {
+        if (ordinal < 0 || ordinal >= handleCount) {
+            throw new IndexOutOfBoundsException("handle " + ordinal + " out of " + handleCount);
+        }
+        file.seek(HEADER_SIZE + ordinal * HANDLE_SIZE + field);
+    }
+
+    /**
+     * Finds the top-level item that assigned a handle.
+     *
+     * @param ordinal the position of the handle in the stream
+     * @return the index of the item in getStreamIndex()
+     */
+    public int getHandleItem(long ordinal) {
+        if (ordinal < 0 || ordinal >= handleCount) {
+            throw new IndexOutOfBoundsException("handle " + ordinal + " out of " + handleCount);
+        }
+        // the last item that starts at or before the ordinal; items without handles
+        // start at the same ordinal as the item after them
+        int lo = 0;
+        int hi = itemOrdinals.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (itemOrdinals[mid] <= ordinal) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param n the index of an item in getStreamIndex()
+     * @return the ordinal of the first handle the item assigns, or of the next handle
+     * assigned after it if it assigns none
+     */
+    public long getItemOrdinal(int n) {
+        return itemOrdinals[n];
+    }
+
+    /**
+     * Determines whether the handles of an item are the contiguous range from its first
+     * to its end handle.  That isn't the case if the item contains a TC_RESET or a
+     * serialized exception, which make the stream reuse handle values within the item.
+     *
+     * @param n the index of the item
+     * @return true if the item's handles are contiguous
+     */
+    public boolean isContiguous(int n) {
+        long count = (n + 1 < itemOrdinals.length ? itemOrdinals[n + 1] : handleCount) - itemOrdinals[n];
+        return index.getEndHandle(n) - (long) index.getFirstHandle(n) == count;
+    }
+
+    /**
+     * Finds a handle value as seen from a top-level item: the handle that a TC_REFERENCE
+     * in that item (or at its end) would refer to.
+     *
+     * @param n the index of the item
+     * @param handle the handle value
+     * @return the ordinal of the handle, or -1 if the handle wasn't assigned in the item's
+     * segment
+     * @throws IOException if the index file can't be read
+     */
+    public long findHandle(int n, int handle) throws IOException {
+        int first = index.getSegmentStart(n);
+        for (int i = n; i >= first; i--) {
+            long start = itemOrdinals[i];
+            long end = i + 1 < itemOrdinals.length ? itemOrdinals[i + 1] : handleCount;
+            if (isContiguous(i)) {
+                if (handle >= index.getFirstHandle(i) && handle < index.getEndHandle(i)) {
+                    return start + (handle - index.getFirstHandle(i));
+                }
+                continue;
+            }
+            // the last assignment of the value wins, and earlier items can't be reached
+            // past a reset
+            for (long ordinal = end - 1; ordinal >= start; ordinal--) {
+                if (getHandle(ordinal) == handle) {
+                    return ordinal;
+                }
+            }
+            return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the names of all classes in the stream, in order of appearance
+     */
+    public List<String> getClassNames() {
+        return Collections.unmodifiableList(Arrays.asList(classNames));
+    }
+
+    /**
+     * Finds the objects, arrays, enum constants and class objects of a class.
+     *
+     * @param className the class name, as in the class description
+     * @return the ordinals of the handles, in stream order; empty if the class doesn't
+     * occur in the stream
+     * @throws IOException if the index file can't be read
+     */
+    public long[] getHandles(String className) throws IOException {
+        Integer cls = classIndexes.get(className);
+        if (cls == null) {
+            return new long[0];
+        }
+        long[] ordinals = new long[postingCounts[cls]];
+        file.seek(postingsOffset + postingStarts[cls] * 8);
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = file.readLong();
+        }
+        return ordinals;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
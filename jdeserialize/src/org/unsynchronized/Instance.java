@@ -1,31 +1,46 @@
 package org.unsynchronized;
 
-import java.util.HashMap;
+import java.io.ObjectStreamConstants;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
+ * <p>
  * Represents an instance of a non-enum, non-Class, non-ObjectStreamClass, 
  * non-array class, including the non-transient field values, for all classes in its
  * hierarchy and inner classes.
+ * </p>
+ *
+ * <p>
+ * Field values are stored compactly, in the slots given by the ClassLayout of the
+ * instance's class description: primitive values are packed into primitiveData, and
+ * references are kept in references.  getFieldData() presents the same values as a map,
+ * built when it's called.
+ * </p>
  */
 public class Instance extends Content {
     /**
-     * Collection of field data, organized by class description.  
+     * Class description for this instance.
      */
-    public Map<ClassDescriptor, Map<Field, Object>> fieldData;
+    public ClassDescriptor classDescriptor;
 
     /**
-     * Class description for this instance.
+     * Packed primitive field values, laid out as described by classDescriptor's layout.
      */
-    public ClassDescriptor classDescriptor;
+    public byte[] primitiveData;
+
+    /**
+     * Reference field values (IContent objects or null), laid out as described by
+     * classDescriptor's layout.
+     */
+    public Object[] references;
 
     /**
      * Constructor.
      */
     public Instance() {
         super(ContentType.INSTANCE);
-        this.fieldData = new HashMap<>();
     }
 
     public String toString() {
@@ -34,7 +49,73 @@ public class Instance extends Content {
     }
 
     /**
-     * Object annotation data.
+     * Object annotation data, or null if there is none.
      */
     public Map<ClassDescriptor, List<IContent>> annotations;
+
+    /**
+     * Gets the layout of this instance's field data.
+     *
+     * @return the layout
+     */
+    public ClassLayout getLayout() {
+        return classDescriptor.getLayout();
+    }
+
+    /**
+     * Gets the value of a field slot.
+     *
+     * @param slot the slot index, as given by the layout
+     * @return the value; primitive values are boxed
+     */
+    public Object getFieldValue(int slot) {
+        ClassLayout layout = getLayout();
+        FieldType type = layout.fields[slot].type;
+        if (type.isPrimitive()) {
+            return type.decode(primitiveData, layout.offsets[slot]);
+        }
+        return references[layout.offsets[slot]];
+    }
+
+    /**
+     * Gets the value of a field by name; see ClassLayout.slotOf(String).
+     *
+     * @param name the field name
+     * @return the value; primitive values are boxed
+     * @throws IllegalArgumentException if there's no such field
+     */
+    public Object getFieldValue(String name) {
+        int slot = getLayout().slotOf(name);
+        if (slot == -1) {
+            throw new IllegalArgumentException("no field " + name + " in " + classDescriptor.name);
+        }
+        return getFieldValue(slot);
+    }
+
+    /**
+     * Collection of field data, organized by class description, in the order in which
+     * it was read from the stream.  The maps are built on each call; changing them
+     * doesn't change the instance.
+     *
+     * @return the field values of every serializable class in the hierarchy
+     */
+    public Map<ClassDescriptor, Map<Field, Object>> getFieldData() {
+        Map<ClassDescriptor, Map<Field, Object>> fieldData = new LinkedHashMap<>();
+        if (primitiveData == null && references == null) {
+            return fieldData;
+        }
+        ClassLayout layout = getLayout();
+        for (int i = 0; i < layout.classes.length; i++) {
+            ClassDescriptor cd = layout.classes[i];
+            if ((cd.descriptorFlags & ObjectStreamConstants.SC_SERIALIZABLE) == 0) {
+                continue;
+            }
+            Map<Field, Object> values = new LinkedHashMap<>();
+            for (int slot = layout.classFieldStart[i]; slot < layout.classFieldStart[i + 1]; slot++) {
+                values.put(layout.fields[slot], getFieldValue(slot));
+            }
+            fieldData.put(cd, values);
+        }
+        return fieldData;
+    }
 }
@@ -1,8 +1,15 @@
 package org.unsynchronized;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,7 +26,11 @@ import java.util.regex.Pattern;
  * documentation of various implementors to get more information about the inner
  * representations.<br/>
  * <br/>
- * To enable debugging on stdout, use the enableDebug() or streamableDebug() options.   <br/> 
+ * Streams that are too large to hold in memory can be scanned event by event with
+ * StreamEventReader instead.<br/>
+ * <br/>
+ * To trace the parse, install an ITraceListener with setTraceListener(); a
+ * PrintTraceListener prints every event as a line of text, which is what -debug does.<br/>
  * <br/>
  * <br/>
  * Command-line tool:   <br/>
@@ -47,6 +58,11 @@ import java.util.regex.Pattern;
  * Additionally, a manifest describing the size of each individual block can be generated
  * with the -blockdatamanifest <file> option.
  * <br/>
+ * Directories given on the command line are searched recursively.  With -threads N, the
+ * files are parsed N at a time (see BatchRunner); the output of each file is framed by
+ * "//// BEGIN file" and "//// END file" lines.  With -ndjson, the output of each file
+ * is written as one JSON record instead, on a single thread unless -threads is given.
+ * <br/>
  * References: <br/>
  *     - Java Object Serialization Specification ch. 6 (Object Serialization Stream
  *       Protocol): <br/>
@@ -61,13 +77,17 @@ import java.util.regex.Pattern;
  * @see IContent
  */
 @SuppressWarnings("CallToPrintStackTrace")
-public class JDeserialize implements Serializable {
+public class JDeserialize implements Serializable, Closeable {
     @Serial
     private static final long serialVersionUID = 78790714646095L;
     public static final String INDENT = "    ";
     @SuppressWarnings("SpellCheckingInspection")
     public static final int CODEWIDTH = 90;
     public static final String lineSeparator = System.lineSeparator();
+    /**
+     * Maximum number of bytes decoded at once by readPrimitiveArray().
+     */
+    public static final int ARRAY_CHUNK_SIZE = 65536;
     public static final String[] keywords = new String[]{
             "abstract", "continue", "for", "new", "switch", "assert", "default", "if",
             "package", "synchronized", "boolean", "do", "goto", "private", "this",
@@ -78,17 +98,276 @@ public class JDeserialize implements Serializable {
             "volatile", "const", "float", "native", "super", "while"};
     public static HashSet<String> keywordSet;
 
-    private final HashMap<Integer, IContent> handles = new HashMap<>();
+    @SuppressWarnings("serial")
+    private IHandleTable handles = new HandleTable();
     private final ArrayList<Map<Integer, IContent>> handleMaps = new ArrayList<>();
     private ArrayList<IContent> IContent;
+    private int retainedSegments = -1;
+    @SuppressWarnings("serial")
+    private ISegmentListener segmentListener;
+    private final ArrayDeque<FiledSegment> filedSegments = new ArrayDeque<>();
+    private int segmentStart;
+    @SuppressWarnings("serial")
+    private IItemListener itemListener;
+    @SuppressWarnings("serial")
+    private Liveness liveness;
+    private boolean evicting;
+    private long handleOrdinal;
     private int currentHandle;
-    private boolean debugEnabled;
+    @SuppressWarnings("serial")
+    private ITraceListener tracer;
+    private boolean recursive;
+    @SuppressWarnings("serial")
+    private ContentFilter filter;
+    private boolean lazyBlockData;
+    private long payloadThreshold = -1;
+    @SuppressWarnings("serial")
+    private Path payloadDirectory;
+    @SuppressWarnings("serial")
+    private PayloadStore payloadStore;
+    private int parallelism = 1;
+    @SuppressWarnings("serial")
+    private PrintStream out = System.out;
+    private final BitSet skippedHandles = new BitSet();
 
     static {
         keywordSet = new HashSet<>();
         Collections.addAll(keywordSet, keywords);
     }
 
+    /**
+     * Sets the stream that run() and dump() print to; by default, this is System.out.
+     *
+     * @param out the stream to print to
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * <p>
+     * Sets the number of threads used to parse a single stream.  Streams that are reset
+     * at the top level (TC_RESET between writeObject() calls) consist of independent
+     * segments; with more than one thread, run() locates the resets with a StreamIndex
+     * pre-scan and parses the segments concurrently.  The merged content, handle maps and
+     * output are the same as for a sequential parse.
+     * </p>
+     *
+     * <p>
+     * This only applies to a MappedInput, and not while a trace, segment or item listener
+     * is installed, the number of retained segments is limited, handles are evicted (see
+     * setLiveness()), or a different handle table is set.
+     * </p>
+     *
+     * @param parallelism the number of threads; 1 (the default) parses sequentially
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * <p>
+     * Limits how many completed segments of the stream are kept.  A segment ends whenever
+     * the handle table is cleared (see ISegmentListener).  By default, the handle table of
+     * every segment is kept in getHandleMaps() and every top-level item in getContent(),
+     * so a long stream that is reset after every message keeps every object it contained.
+     * With a limit, only the handle maps and top-level items of the most recent segments
+     * are kept, and those of older segments are dropped as soon as a new segment ends;
+     * with a limit of 0 and a segment listener, a stream is processed in memory that
+     * depends on its largest segment rather than its length.
+     * </p>
+     *
+     * <p>
+     * The segment that is being read is always kept until it ends.  The current handle
+     * table, which dump() lists classes and instances from, is not affected.
+     * </p>
+     *
+     * @param count the number of segments to keep, 0 to keep none, or -1 (the default)
+     * to keep all of them
+     */
+    public void setRetainedSegments(int count) {
+        if (count < -1) {
+            throw new IllegalArgumentException("invalid segment count: " + count);
+        }
+        this.retainedSegments = count;
+    }
+
+    /**
+     * Installs a listener that is handed every segment of the stream when it ends, before
+     * it is kept or dropped; see setRetainedSegments().
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setSegmentListener(ISegmentListener listener) {
+        this.segmentListener = listener;
+    }
+
+    /**
+     * Installs a listener that is handed every top-level item as soon as it has been read.
+     * Items handed to the listener are not kept in getContent().
+     *
+     * @param listener the listener, or null to keep items in getContent() (the default)
+     */
+    public void setItemListener(IItemListener listener) {
+        this.itemListener = listener;
+    }
+
+    /**
+     * <p>
+     * Makes run() drop handles from the handle table as soon as they won't be referred to
+     * again, using the last uses found by a first pass over the same stream (see
+     * Liveness.build()).  Content that is never referred to isn't stored in the table at
+     * all.  Together with an item listener (see setItemListener()), this lets a stream
+     * without resets be parsed in memory proportional to the content that is still
+     * referred to later, rather than to everything the stream contains.
+     * </p>
+     *
+     * <p>
+     * Since the handle table then only holds content that was still in use at the end of
+     * the stream, so do getHandleMaps() and the class and instance output of dump().  This
+     * doesn't apply to readItem() and readHandle(), which don't start at the beginning of
+     * the stream.
+     * </p>
+     *
+     * @param liveness the last uses of the handles of the stream that run() will parse,
+     * or null to keep all handles (the default)
+     */
+    public void setLiveness(Liveness liveness) {
+        this.liveness = liveness;
+    }
+
+    /**
+     * <p>
+     * Replaces the handle table, e.g. with a SpillingHandleTable for streams whose
+     * content doesn't fit in memory.  The table is cleared whenever a run starts and at
+     * every reset; it is up to the caller to close it when it's no longer needed.
+     * </p>
+     *
+     * <p>
+     * Note that the table is walked when a segment ends, to validate its content and to
+     * connect member classes, and that by default every segment is copied into
+     * getHandleMaps().  With a SpillingHandleTable, the walk reads back everything that
+     * was spilled, and the copy keeps all of it in memory; use setRetainedSegments() to
+     * avoid the latter.
+     * </p>
+     *
+     * <p>
+     * run() doesn't parse segments in parallel with any table other than the default
+     * HandleTable, since the segments would be parsed into tables of their own.
+     * </p>
+     *
+     * @param table the table to store content by handle in
+     */
+    public void setHandleTable(IHandleTable table) {
+        this.handles = Objects.requireNonNull(table);
+    }
+
+    /**
+     * Installs a listener for structured trace events.  With no listener (the default),
+     * tracing costs a null check per event.
+     *
+     * @param tracer the listener, or null to turn tracing off
+     */
+    public void setTraceListener(ITraceListener tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * <p>
+     * Controls whether block data is copied into memory.  When enabled, and the input is
+     * persistent (see ISerialInput.isPersistent(), e.g. a MappedInput), the contents of
+     * TC_BLOCKDATA and TC_BLOCKDATALONG are skipped over; the BlockData objects only keep
+     * their offset and size, and read the bytes from the input when getData() is called.
+     * </p>
+     *
+     * <p>
+     * Block data from other inputs is always copied.
+     * </p>
+     *
+     * @param lazyBlockData true to leave block data in the input
+     */
+    public void setLazyBlockData(boolean lazyBlockData) {
+        this.lazyBlockData = lazyBlockData;
+    }
+
+    /**
+     * <p>
+     * Sets the size above which the bytes of strings, arrays of primitives and block
+     * data are not copied into memory, but kept in a Payload: left in the input if it is
+     * persistent (see ISerialInput.isPersistent(), e.g. a MappedInput), or else copied
+     * into a temporary file (see setPayloadDirectory()).  StringObject, ObjectList and
+     * BlockData give access to their payloads.
+     * </p>
+     *
+     * <p>
+     * Strings of more bytes than an array can hold always go into a payload, so there's
+     * no limit on the length of TC_LONGSTRING.
+     * </p>
+     *
+     * <p>
+     * On a stream that can't be re-read (a pipe or a socket, say), a StreamInput keeps a
+     * copy of each top-level item in case it turns out to be an exception (see
+     * ExceptionState).  Payloads are left out of that copy, but the rest of the item is
+     * kept in memory, and the bytes of an exception item are still put into one array.
+     * </p>
+     *
+     * <p>
+     * The temporary file lasts until the next run starts or close() is called; the
+     * payloads in it can't be read after that.
+     * </p>
+     *
+     * @param threshold the number of bytes above which content is kept in a payload, or
+     * -1 (the default) to only do so for strings that are too long for an array
+     */
+    public void setPayloadThreshold(long threshold) {
+        this.payloadThreshold = threshold;
+    }
+
+    /**
+     * Sets the directory for the temporary file that payloads are copied into when the
+     * input isn't persistent.  The file is created on first use in each run.
+     *
+     * @param directory the directory, or null (the default) for the default temporary
+     * directory
+     */
+    public void setPayloadDirectory(Path directory) {
+        this.payloadDirectory = directory;
+    }
+
+    /**
+     * <p>
+     * Sets the filter that selects which instances and reference fields are
+     * materialized while parsing.  Everything else is walked over, so that handles stay
+     * consistent, but no Instance or ArrayObject is created for it; references to skipped
+     * content resolve to null.  Class descriptions, strings, enums and Class objects are
+     * always read.
+     * </p>
+     *
+     * <p>
+     * Filtering is done by readContentIterative(), so run() ignores setRecursive() while a
+     * filter is set.
+     * </p>
+     *
+     * @param filter the filter, or null to materialize everything
+     */
+    public void setFilter(ContentFilter filter) {
+        this.filter = (filter == null || filter.isEmpty()) ? null : filter;
+    }
+
+    /**
+     * Selects the parser used by run().  By default, run() uses readContentIterative(),
+     * which handles arbitrarily deep object graphs; the recursive readContent() is
+     * limited by the size of the native stack.
+     *
+     * @param recursive true to parse with readContent()
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+
     /**
      * <p>
      * Retrieves the list of content objects that were written to the stream.  Each item
@@ -104,7 +383,12 @@ public class JDeserialize implements Serializable {
      *
      * <p>
      * Entries in the list may be null, because it's perfectly legitimate to write a null
-     * reference to the stream.  
+     * reference to the stream.
+     * </p>
+     *
+     * <p>
+     * If the number of retained segments is limited (see setRetainedSegments()), this
+     * only holds the items of the segments that are kept.
      * </p>
      *
      * @return a list of content objects
@@ -128,7 +412,9 @@ public class JDeserialize implements Serializable {
      * </p>
      *
      * <p>
-     * See the spec for details on handles.
+     * See the spec for details on handles.  To look at a few objects of a big stream
+     * without holding all of them in memory, see LazyGraph; to process a long stream of
+     * resets without keeping all of its maps, see setRetainedSegments().
      * </p>
      * @return a list of <Integer,content> maps
      */
@@ -164,44 +450,37 @@ public class JDeserialize implements Serializable {
         return INDENT.repeat(Math.max(0, level));
     }
 
-    public void readClassData(DataInputStream stream, Instance inst) throws IOException {
-        ArrayList<ClassDescriptor> classes = new ArrayList<>();
-        inst.classDescriptor.getHierarchy(classes);
-        Map<ClassDescriptor, Map<Field, Object>> allData = new HashMap<>();
-        Map<ClassDescriptor, List<IContent>> ann = new HashMap<>();
-        for (ClassDescriptor cd : classes) {
-            Map<Field, Object> values = new HashMap<>();
-            if ((cd.descriptorFlags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
-                if ((cd.descriptorFlags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
-                    throw new IOException("SC_EXTERNALIZABLE & SC_SERIALIZABLE encountered");
-                }
-                for (Field f : cd.fields) {
-                    Object o = readFieldValue(f.type, stream);
-                    values.put(f, o);
-                }
-                allData.put(cd, values);
-                if ((cd.descriptorFlags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
-                    if ((cd.descriptorFlags & ObjectStreamConstants.SC_ENUM) != 0) {
-                        throw new IOException("SC_ENUM & SC_WRITE_METHOD encountered!");
-                    }
-                    ann.put(cd, read_classAnnotation(stream));
-                }
-            } else if ((cd.descriptorFlags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
-                if ((cd.descriptorFlags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
-                    throw new IOException("SC_SERIALIZABLE & SC_EXTERNALIZABLE encountered");
-                }
-                if ((cd.descriptorFlags & ObjectStreamConstants.SC_BLOCK_DATA) != 0) {
-                    throw new EOFException("hit externalizable with nonzero SC_BLOCK_DATA; can't interpret data");
-                } else {
-                    ann.put(cd, read_classAnnotation(stream));
-                }
+    public void readClassData(DataInput stream, Instance inst) throws IOException {
+        ClassLayout layout = inst.classDescriptor.getLayout();
+        byte[] primitives = new byte[layout.primitiveSize];
+        Object[] references = new Object[layout.referenceCount];
+        inst.primitiveData = primitives;
+        inst.references = references;
+        Map<ClassDescriptor, List<IContent>> ann = null;
+        int[] plan = layout.plan;
+        for (int pc = layout.readPrimitives(0, stream, primitives); pc < plan.length; pc = layout.readPrimitives(pc + 2, stream, primitives)) {
+            switch (plan[pc]) {
+                case ClassLayout.OP_OBJECT -> references[plan[pc + 1]] = readFieldValue(FieldType.OBJECT, stream);
+                case ClassLayout.OP_ARRAY -> references[plan[pc + 1]] = readFieldValue(FieldType.ARRAY, stream);
+                default -> ann = addAnnotations(ann, layout.classes[plan[pc + 1]], read_classAnnotation(stream));
             }
         }
         inst.annotations = ann;
-        inst.fieldData = allData;
     }
 
-    public Object readFieldValue(FieldType fieldType, DataInputStream stream) throws IOException {
+    /**
+     * Adds a class's object annotations to an instance's annotation map, creating the
+     * map if this is the first.
+     */
+    private static Map<ClassDescriptor, List<IContent>> addAnnotations(Map<ClassDescriptor, List<IContent>> ann, ClassDescriptor cd, List<IContent> list) {
+        if (ann == null) {
+            ann = new HashMap<>(4);
+        }
+        ann.put(cd, list);
+        return ann;
+    }
+
+    public Object readFieldValue(FieldType fieldType, DataInput stream) throws IOException {
         switch (fieldType) {
             case BYTE:
                 return stream.readByte();
@@ -236,9 +515,18 @@ public class JDeserialize implements Serializable {
     }
 
     private int newHandle() {
+        handleOrdinal++;
         return currentHandle++;
     }
 
+    /**
+     * Finds the ordinal of an assigned handle (see IScanListener) while handles are being
+     * evicted; handle values are consecutive since the last reset.
+     */
+    private long ordinalOf(int handle) {
+        return handleOrdinal - (currentHandle - handle);
+    }
+
     public static String resolveJavaType(FieldType type, String classname, boolean convertSlashes, boolean fixName) throws IOException {
         if (type == FieldType.ARRAY) {
             StringBuilder asb = new StringBuilder();
@@ -277,7 +565,7 @@ public class JDeserialize implements Serializable {
         }
     }
 
-    public List<IContent> read_classAnnotation(DataInputStream stream) throws IOException {
+    public List<IContent> read_classAnnotation(DataInput stream) throws IOException {
         List<IContent> list = new ArrayList<>();
         while (true) {
             byte tc = stream.readByte();
@@ -304,16 +592,17 @@ public class JDeserialize implements Serializable {
             for (ClassDescriptor cd : inst.annotations.keySet()) {
                 sb.append("    ").append(cd.name).append(lineSeparator);
                 for (IContent c : inst.annotations.get(cd)) {
-                    sb.append("        ").append(c.toString()).append(lineSeparator);
+                    sb.append("        ").append(c).append(lineSeparator);
                 }
             }
         }
-        if (inst.fieldData != null && !inst.fieldData.isEmpty()) {
+        Map<ClassDescriptor, Map<Field, Object>> fieldData = inst.getFieldData();
+        if (!fieldData.isEmpty()) {
             sb.append(lineSeparator).append("  field data:").append(lineSeparator);
-            for (ClassDescriptor cd : inst.fieldData.keySet()) {
+            for (ClassDescriptor cd : fieldData.keySet()) {
                 sb.append("    ").append(hex(cd.handle)).append("/").append(cd.name).append(":").append(lineSeparator);
-                for (Field f : inst.fieldData.get(cd).keySet()) {
-                    Object o = inst.fieldData.get(cd).get(f);
+                for (Field f : fieldData.get(cd).keySet()) {
+                    Object o = fieldData.get(cd).get(f);
                     sb.append("        ").append(f.name).append(": ");
                     if (o instanceof IContent c) {
                         int h = c.getHandle();
@@ -468,22 +757,74 @@ public class JDeserialize implements Serializable {
     }
 
     public void setHandle(int handle, IContent c) throws IOException {
-        if (handles.containsKey(handle)) {
+        if (handles.get(handle) != null) {
             throw new IOException("trying to reset handle " + hex(handle));
         }
+        if (evicting && !liveness.isReferenced(ordinalOf(handle))) {
+            return;
+        }
         handles.put(handle, c);
     }
 
     public void reset() {
-        debug("reset ordered!");
-        if (!handles.isEmpty()) {
-            HashMap<Integer, IContent> hm = new HashMap<>(handles);
-            handleMaps.add(hm);
+        if (tracer != null) {
+            tracer.trace(TraceEvent.RESET, ObjectStreamConstants.TC_RESET, -1, -1, null, 0);
         }
+        endSegment();
         handles.clear();
+        skippedHandles.clear();
         currentHandle = ObjectStreamConstants.baseWireHandle;  // 0x7e0000
     }
 
+    /**
+     * A segment that was kept; see setRetainedSegments().
+     */
+    private static final class FiledSegment {
+        int items;
+        boolean hasMap;
+    }
+
+    /**
+     * Ends the current segment: hands it to the segment listener, then files its handle
+     * table and keeps its top-level items, dropping the oldest segments beyond the limit
+     * of setRetainedSegments().
+     */
+    private void endSegment() {
+        int end = IContent == null ? 0 : IContent.size();
+        if (handles.isEmpty() && end == segmentStart) {
+            return;
+        }
+        Map<Integer, IContent> map = null;
+        if (segmentListener != null || retainedSegments != 0) {
+            map = handles.toMap();
+        }
+        if (segmentListener != null) {
+            segmentListener.segmentEnded(map, IContent == null ? new ArrayList<>() : new ArrayList<>(IContent.subList(segmentStart, end)));
+        }
+        if (retainedSegments < 0) {
+            if (!handles.isEmpty()) {
+                handleMaps.add(map);
+            }
+        } else {
+            FiledSegment segment = new FiledSegment();
+            segment.items = end - segmentStart;
+            segment.hasMap = !handles.isEmpty() && retainedSegments > 0;
+            if (segment.hasMap) {
+                handleMaps.add(map);
+            }
+            filedSegments.add(segment);
+            while (filedSegments.size() > retainedSegments) {
+                FiledSegment dropped = filedSegments.removeFirst();
+                if (dropped.hasMap) {
+                    handleMaps.removeFirst();
+                }
+                IContent.subList(0, dropped.items).clear();
+            }
+            end = IContent == null ? 0 : IContent.size();
+        }
+        segmentStart = end;
+    }
+
     /**
      * Read the content of a thrown exception object.  According to the spec, this must be
      * an object of type Throwable.  Although the Sun JDK always appears to provide enough
@@ -494,7 +835,10 @@ public class JDeserialize implements Serializable {
      * ensure that the written object is indeed an instance; ensuring that the object is
      * indeed a Throwable is an exercise left to the user.
      */
-    public IContent readException(DataInputStream stream) throws IOException {
+    public IContent readException(DataInput stream) throws IOException {
+        if (tracer != null) {
+            tracer.trace(TraceEvent.EXCEPTION, ObjectStreamConstants.TC_EXCEPTION, -1, offset(stream), null, 0);
+        }
         reset();
         byte tc = stream.readByte();
         if (tc == ObjectStreamConstants.TC_RESET) {
@@ -515,73 +859,61 @@ public class JDeserialize implements Serializable {
         return c;
     }
 
-    public ClassDescriptor readClassDesc(DataInputStream stream) throws IOException {
+    public ClassDescriptor readClassDesc(DataInput stream) throws IOException {
         byte tc = stream.readByte();
         return handleClassDesc(tc, stream, false);
     }
 
-    public ClassDescriptor readNewClassDesc(DataInputStream stream) throws IOException {
+    public ClassDescriptor readNewClassDesc(DataInput stream) throws IOException {
         byte tc = stream.readByte();
         return handleNewClassDesc(tc, stream);
     }
 
-    public IContent readPrevObject(DataInputStream stream) throws IOException {
+    public IContent readPrevObject(DataInput stream) throws IOException {
+        long offset = offset(stream) - 1;
         int handle = stream.readInt();
-        if (!handles.containsKey(handle)) {
+        IContent content = handles.get(handle);
+        if (content == null) {
+            if (isSkipped(handle)) {
+                if (tracer != null) {
+                    tracer.trace(TraceEvent.REFERENCE, ObjectStreamConstants.TC_REFERENCE, handle, offset(stream), null, 0);
+                }
+                return null;
+            }
             throw new ValidityException("can't find an entry for handle " + hex(handle));
         }
-        IContent content = handles.get(handle);
-        debug("prevObject: handle " + hex(content.getHandle()) + " classdesc " + content);
+        if (tracer != null) {
+            tracer.trace(TraceEvent.REFERENCE, ObjectStreamConstants.TC_REFERENCE, handle, offset(stream), className(content), 0);
+        }
+        if (evicting && liveness.getLastUse(ordinalOf(handle)) == offset) {
+            handles.remove(handle);
+        }
         return content;
     }
 
-    public ClassDescriptor handleNewClassDesc(byte tc, DataInputStream stream) throws IOException {
+    public ClassDescriptor handleNewClassDesc(byte tc, DataInput stream) throws IOException {
         return handleClassDesc(tc, stream, true);
     }
 
-    public ClassDescriptor handleClassDesc(byte tc, DataInputStream stream, boolean mustBeNew) throws IOException {
+    public ClassDescriptor handleClassDesc(byte tc, DataInput stream, boolean mustBeNew) throws IOException {
         if (tc == ObjectStreamConstants.TC_CLASSDESC) {
             String name = stream.readUTF();
             long serialVersionUID = stream.readLong();
             int handle = newHandle();
-            byte descflags = stream.readByte();
-            short fieldCount = stream.readShort();
-            if (fieldCount < 0) {
-                throw new IOException("invalid field count: " + fieldCount);
-            }
-            Field[] Fields = new Field[fieldCount];
-            for (short s = 0; s < fieldCount; s++) {
-                byte fieldType = stream.readByte();
-                if (fieldType == 'B' || fieldType == 'C' || fieldType == 'D'
-                        || fieldType == 'F' || fieldType == 'I' || fieldType == 'J'
-                        || fieldType == 'S' || fieldType == 'Z') {
-                    String fieldName = stream.readUTF();
-                    Fields[s] = new Field(FieldType.get(fieldType), fieldName);
-                } else if (fieldType == '[' || fieldType == 'L') {
-                    String fieldName = stream.readUTF();
-                    byte stc = stream.readByte();
-                    StringObject classname = readNewString(stc, stream);
-                    Fields[s] = new Field(FieldType.get(fieldType), fieldName, classname);
-                } else {
-                    throw new IOException("invalid field type char: " + hex(fieldType));
-                }
+            ClassDescriptor cd = ClassDescriptor.readClassDesc(stream, name, serialVersionUID,
+                    () -> readNewString(stream.readByte(), stream));
+            if (tracer != null) {
+                tracer.trace(TraceEvent.CLASSDESC, tc, handle, offset(stream), name, cd.fields.length);
             }
-            ClassDescriptor cd = new ClassDescriptor(ClassDescriptorType.NORMALCLASS);
-            cd.name = name;
-            cd.uid = serialVersionUID;
             cd.handle = handle;
-            cd.descriptorFlags = descflags;
-            cd.fields = Fields;
             cd.annotations = read_classAnnotation(stream);
             cd.superClass = readClassDesc(stream);
             setHandle(handle, cd);
-            debug("read new classdesc: handle " + hex(handle) + " name " + name);
             return cd;
         } else if (tc == ObjectStreamConstants.TC_NULL) {
             if (mustBeNew) {
                 throw new ValidityException("expected new class description -- got null!");
             }
-            debug("read null classdesc");
             return null;
         } else if (tc == ObjectStreamConstants.TC_REFERENCE) {
             if (mustBeNew) {
@@ -595,115 +927,342 @@ public class JDeserialize implements Serializable {
             return cd;
         } else if (tc == ObjectStreamConstants.TC_PROXYCLASSDESC) {
             int handle = newHandle();
-            int interfaceCount = stream.readInt();
-            if (interfaceCount < 0) {
-                throw new IOException("invalid proxy interface count: " + hex(interfaceCount));
-            }
-            String[] interfaces = new String[interfaceCount];
-            for (int i = 0; i < interfaceCount; i++) {
-                interfaces[i] = stream.readUTF();
+            ClassDescriptor cd = ClassDescriptor.readProxyClassDesc(stream);
+            if (tracer != null) {
+                tracer.trace(TraceEvent.PROXY_CLASSDESC, tc, handle, offset(stream), null, cd.interfaces.length);
             }
-            ClassDescriptor cd = new ClassDescriptor(ClassDescriptorType.PROXYCLASS);
             cd.handle = handle;
-            cd.interfaces = interfaces;
             cd.annotations = read_classAnnotation(stream);
             cd.superClass = readClassDesc(stream);
             setHandle(handle, cd);
-            cd.name = "(proxy class; no name)";
-            debug("read new proxy classdesc: handle " + hex(handle) + " names [" + Arrays.toString(interfaces) + "]");
             return cd;
         } else {
             throw new ValidityException("expected a valid class description starter got " + hex(tc));
         }
     }
 
-    public ArrayObject readNewArray(DataInputStream stream) throws IOException {
+    public ArrayObject readNewArray(DataInput stream) throws IOException {
         ClassDescriptor cd = readClassDesc(stream);
+        checkArrayClass(cd);
+        int size = readArraySize(stream);
+        ArrayObject array = startNewArray(cd, size, stream);
+        array.data = readArrayValues(elementType(cd.name.substring(1)), size, stream);
+        handles.completed(array.handle);
+        return array;
+    }
+
+    /**
+     * Registers a new array (without its values) of the given class under a new handle;
+     * the class has been checked, and the length read.
+     */
+    private ArrayObject startNewArray(ClassDescriptor cd, int length, DataInput stream) throws IOException {
         int handle = newHandle();
-        debug("reading new array: handle " + hex(handle) + " classdesc " + cd.toString());
+        if (tracer != null) {
+            tracer.trace(TraceEvent.ARRAY, ObjectStreamConstants.TC_ARRAY, handle, offset(stream), cd.name, length);
+        }
+        ArrayObject array = new ArrayObject(handle, cd, null);
+        setHandle(handle, array);
+        return array;
+    }
+
+    public ObjectList readArrayValues(String string, DataInput stream) throws IOException {
+        FieldType type = elementType(string);
+        return readArrayValues(type, readArraySize(stream), stream);
+    }
+
+    private ObjectList readArrayValues(FieldType type, int size, DataInput stream) throws IOException {
+        if (type.isPrimitive()) {
+            return readPrimitiveValues(type, size, stream);
+        }
+        ObjectList objects = new ObjectList(type);
+        for (int i = 0; i < size; i++) {
+            objects.add(readFieldValue(type, stream));
+        }
+        return objects;
+    }
+
+    /**
+     * Reads the values of an array of primitives, into memory or into a payload (see
+     * setPayloadThreshold()).
+     */
+    private ObjectList readPrimitiveValues(FieldType type, int size, DataInput stream) throws IOException {
+        long length = (long) size * type.width();
+        checkLength(stream, length, "array");
+        if (payloadThreshold >= 0 && length > payloadThreshold) {
+            return new ObjectList(type, readPayload(stream, length), size);
+        }
+        return new ObjectList(type, readPrimitiveArray(type, size, stream));
+    }
+
+    /**
+     * Tells whether content of the given number of bytes is to be kept in a payload.
+     */
+    private boolean isPayload(long length) {
+        return (payloadThreshold >= 0 && length > payloadThreshold) || length > Integer.MAX_VALUE - 8;
+    }
+
+    /**
+     * Reads bytes into a payload: they are skipped over in a persistent input, and
+     * copied into the run's payload store otherwise, leaving them out of what a
+     * StreamInput records.
+     */
+    private Payload readPayload(DataInput stream, long length) throws IOException {
+        if (stream instanceof ISerialInput input && input.isPersistent()) {
+            long position = input.position();
+            skipFully(input, length);
+            return new Payload(input, position, length);
+        }
+        if (payloadStore == null) {
+            payloadStore = new PayloadStore(payloadDirectory);
+        }
+        if (stream instanceof StreamInput input) {
+            return input.appendTo(payloadStore, length);
+        }
+        return payloadStore.append(stream, length);
+    }
+
+    static void checkArrayClass(ClassDescriptor cd) throws IOException {
         if (cd.name.length() < 2) {
             throw new IOException("invalid name in array classdesc: " + cd.name);
         }
-        ObjectList ac = readArrayValues(cd.name.substring(1), stream);
-        return new ArrayObject(handle, cd, ac);
     }
 
-    public ObjectList readArrayValues(String string, DataInputStream stream) throws IOException {
-        byte firstByte = string.getBytes(StandardCharsets.UTF_8)[0];
-        FieldType type = FieldType.get(firstByte);
+    static FieldType elementType(String string) throws ValidityException {
+        return FieldType.get(string.getBytes(StandardCharsets.UTF_8)[0]);
+    }
+
+    static int readArraySize(DataInput stream) throws IOException {
         int size = stream.readInt();
         if (size < 0) {
             throw new IOException("invalid array size: " + size);
         }
+        return size;
+    }
 
-        ObjectList objects = new ObjectList(type);
-        for (int i = 0; i < size; i++) {
-            objects.add(readFieldValue(type, stream));
+    /**
+     * Reads the values of an array of primitives in bulk.  The raw big-endian data is
+     * read with readFully() in chunks of at most ARRAY_CHUNK_SIZE bytes and decoded
+     * through a ByteBuffer view, so no per-element boxing takes place.
+     *
+     * <p>
+     * The size comes from the stream, so it isn't trusted: it is checked against what's
+     * left of the input first (see checkLength()), and where that isn't known, the array
+     * starts small and grows as the values actually arrive.
+     * </p>
+     *
+     * @param type the element type; must be a primitive type
+     * @param size the number of elements
+     * @param stream the stream to read from
+     * @return a byte[], char[], double[], float[], int[], long[], short[] or boolean[]
+     * @throws IOException if an I/O error occurs
+     */
+    public static Object readPrimitiveArray(FieldType type, int size, DataInput stream) throws IOException {
+        if (type == FieldType.BYTE) {
+            return readBytes(stream, size);
         }
-        return objects;
+        int width = type.width();
+        int capacity = checkLength(stream, (long) size * width, "array") ? size : Math.min(size, ARRAY_CHUNK_SIZE / width);
+        Object array = switch (type) {
+            case CHAR -> new char[capacity];
+            case DOUBLE -> new double[capacity];
+            case FLOAT -> new float[capacity];
+            case INTEGER -> new int[capacity];
+            case LONG -> new long[capacity];
+            case SHORT -> new short[capacity];
+            case BOOLEAN -> new boolean[capacity];
+            default -> throw new IOException("can't process type: " + type);
+        };
+        byte[] chunk = new byte[(int) Math.min((long) size * width, ARRAY_CHUNK_SIZE)];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        int done = 0;
+        while (done < size) {
+            if (done == capacity) {
+                capacity = (int) Math.min(size, capacity * 2L);
+                array = switch (type) {
+                    case CHAR -> Arrays.copyOf((char[]) array, capacity);
+                    case DOUBLE -> Arrays.copyOf((double[]) array, capacity);
+                    case FLOAT -> Arrays.copyOf((float[]) array, capacity);
+                    case INTEGER -> Arrays.copyOf((int[]) array, capacity);
+                    case LONG -> Arrays.copyOf((long[]) array, capacity);
+                    case SHORT -> Arrays.copyOf((short[]) array, capacity);
+                    default -> Arrays.copyOf((boolean[]) array, capacity);
+                };
+            }
+            int count = Math.min(capacity - done, chunk.length / width);
+            stream.readFully(chunk, 0, count * width);
+            buffer.clear();
+            switch (type) {
+                case CHAR -> buffer.asCharBuffer().get((char[]) array, done, count);
+                case DOUBLE -> buffer.asDoubleBuffer().get((double[]) array, done, count);
+                case FLOAT -> buffer.asFloatBuffer().get((float[]) array, done, count);
+                case INTEGER -> buffer.asIntBuffer().get((int[]) array, done, count);
+                case LONG -> buffer.asLongBuffer().get((long[]) array, done, count);
+                case SHORT -> buffer.asShortBuffer().get((short[]) array, done, count);
+                default -> {
+                    boolean[] booleans = (boolean[]) array;
+                    for (int i = 0; i < count; i++) {
+                        booleans[done + i] = chunk[i] != 0;
+                    }
+                }
+            }
+            done += count;
+        }
+        return array;
+    }
+
+    /**
+     * Checks a length declared by the stream against the number of bytes left in the
+     * input, so that a few bytes of corrupt or hostile input claiming a 2GB string can't
+     * make the parser allocate 2GB before finding out.  The number of bytes left is known
+     * for a MappedInput and for a StreamInput over a file; for other inputs the caller
+     * has to allocate as the data arrives instead, as readBytes() does.
+     *
+     * @param stream the stream the bytes are about to be read from
+     * @param length the declared number of bytes
+     * @param what what the bytes are, for the error message
+     * @return true if the bytes are known to be there, false if the length of the input
+     * isn't known
+     * @throws EOFException if the input ends before the declared length
+     */
+    static boolean checkLength(DataInput stream, long length, String what) throws EOFException {
+        if (!(stream instanceof ISerialInput input) || input.length() < 0) {
+            return false;
+        }
+        long left = input.length() - input.position();
+        if (length > left) {
+            throw new EOFException(what + " of " + length + " bytes at offset " + input.position()
+                    + ", but only " + left + " bytes are left in the input");
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number of bytes that was declared by the stream.  The bytes are read into
+     * an array of the full length right away only if checkLength() can vouch for them,
+     * or there are at most ARRAY_CHUNK_SIZE of them; otherwise the array starts at
+     * ARRAY_CHUNK_SIZE and doubles as the bytes arrive, so a truncated stream fails
+     * having allocated no more than about three times what it actually held.
+     *
+     * @param stream the stream to read from
+     * @param length the declared number of bytes
+     * @return the bytes
+     * @throws IOException if the stream ends first, or can't be read
+     */
+    static byte[] readBytes(DataInput stream, int length) throws IOException {
+        if (length <= ARRAY_CHUNK_SIZE || checkLength(stream, length, "data")) {
+            byte[] data = new byte[length];
+            stream.readFully(data);
+            return data;
+        }
+        byte[] data = new byte[ARRAY_CHUNK_SIZE];
+        int done = 0;
+        while (done < length) {
+            if (done == data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(length, data.length * 2L));
+            }
+            stream.readFully(data, done, data.length - done);
+            done = data.length;
+        }
+        return data;
     }
 
-    public ClassObject readNewClass(DataInputStream stream) throws IOException {
+    public ClassObject readNewClass(DataInput stream) throws IOException {
         ClassDescriptor cd = readClassDesc(stream);
         int handle = newHandle();
-        debug("reading new class: handle " + hex(handle) + " classdesc " + cd.toString());
+        if (tracer != null) {
+            tracer.trace(TraceEvent.CLASS, ObjectStreamConstants.TC_CLASS, handle, offset(stream), className(cd), 0);
+        }
         ClassObject clazz = new ClassObject(handle, cd);
         setHandle(handle, clazz);
         return clazz;
     }
 
-    public EnumObject readNewEnum(DataInputStream stream) throws IOException {
+    public EnumObject readNewEnum(DataInput stream) throws IOException {
         ClassDescriptor cd = readClassDesc(stream);
         if (cd == null) {
             throw new IOException("enum classdesc can't be null!");
         }
         int handle = newHandle();
-        debug("reading new enum: handle " + hex(handle) + " classdesc " + cd);
+        if (tracer != null) {
+            tracer.trace(TraceEvent.ENUM, ObjectStreamConstants.TC_ENUM, handle, offset(stream), cd.name, 0);
+        }
         byte tc = stream.readByte();
         StringObject stringObject = readNewString(tc, stream);
-        cd.addEnum(stringObject.value);
-        setHandle(handle, stringObject);
-        return new EnumObject(handle, cd, stringObject);
+        if (stringObject != null) {
+            cd.addEnum(stringObject.getValue());
+        }
+        EnumObject enumObject = new EnumObject(handle, cd, stringObject);
+        setHandle(handle, enumObject);
+        return enumObject;
     }
 
-    public StringObject readNewString(byte tc, DataInputStream stream) throws IOException {
-        byte[] data;
+    /**
+     * Reads a string, or a reference to one.
+     *
+     * @param tc the string's typecode, already read from the stream
+     * @param stream the DataInput to read from
+     * @return the string, or null if the reference is to a string that was skipped
+     * (see startContent())
+     * @throws IOException if an I/O error occurs, or the stream holds no string here
+     */
+    public StringObject readNewString(byte tc, DataInput stream) throws IOException {
         if (tc == ObjectStreamConstants.TC_REFERENCE) {
             IContent content = readPrevObject(stream);
+            if (content == null) {
+                return null;
+            }
             if (!(content instanceof StringObject)) {
                 throw new IOException("got reference for a string, but referenced value was something else!");
             }
             return (StringObject) content;
         }
         int handle = newHandle();
+        long length = readStringLength(tc, stream);
+        StringObject sobj;
+        if (isPayload(length)) {
+            sobj = new StringObject(handle, readPayload(stream, length));
+        } else {
+            sobj = new StringObject(handle, readBytes(stream, (int) length));
+        }
+        if (tracer != null) {
+            tracer.trace(TraceEvent.STRING, tc, handle, offset(stream), null, length);
+        }
+        setHandle(handle, sobj);
+        return sobj;
+    }
+
+    /**
+     * Skips a new string, whose handle is marked as skipped.
+     */
+    private void skipNewString(byte tc, DataInput stream) throws IOException {
+        int handle = newHandle();
+        long length = readStringLength(tc, stream);
+        skipHandle(handle, tc, null, stream);
+        skipFully(stream, length);
+    }
+
+    private long readStringLength(byte tc, DataInput stream) throws IOException {
+        long length;
         if (tc == ObjectStreamConstants.TC_STRING) {
-            int length = stream.readUnsignedShort();
-            data = new byte[length];
+            length = stream.readUnsignedShort();
         } else if (tc == ObjectStreamConstants.TC_LONGSTRING) {
-            long length = stream.readLong();
+            length = stream.readLong();
             if (length < 0) {
                 throw new IOException("invalid long string length: " + length);
             }
-            if (length > 2147483647) {
-                throw new IOException("long string is too long: " + length);
-            }
             if (length < 65536) {
                 debugerr("warning: small string length encoded as TC_LONGSTRING: " + length);
             }
-            data = new byte[(int) length];
         } else if (tc == ObjectStreamConstants.TC_NULL) {
             throw new ValidityException("stream signaled TC_NULL when string type expected!");
         } else {
             throw new IOException("invalid tc byte in string: " + hex(tc));
         }
-        stream.readFully(data);
-        debug("reading new string: handle " + hex(handle) + " bufsz " + data.length);
-        StringObject sobj = new StringObject(handle, data);
-        setHandle(handle, sobj);
-        return sobj;
+        checkLength(stream, length, "string");
+        return length;
     }
 
-    public BlockData readBlockdata(byte tc, DataInputStream stream) throws IOException {
+    public BlockData readBlockdata(byte tc, DataInput stream) throws IOException {
         int size;
         if (tc == ObjectStreamConstants.TC_BLOCKDATA) {
             size = stream.readUnsignedByte();
@@ -715,22 +1274,52 @@ public class JDeserialize implements Serializable {
         if (size < 0) {
             throw new IOException("invalid value for blockdata size: " + size);
         }
-        byte[] data = new byte[size];
-        stream.readFully(data);
-        debug("read blockdata of size " + size);
+        checkLength(stream, size, "block data");
+        if (lazyBlockData && stream instanceof ISerialInput input && input.isPersistent()) {
+            long offset = input.position();
+            skipFully(input, size);
+            if (tracer != null) {
+                tracer.trace(TraceEvent.BLOCKDATA, tc, -1, offset, null, size);
+            }
+            return new BlockData(input, offset, size);
+        }
+        if (isPayload(size)) {
+            long offset = offset(stream);
+            Payload payload = readPayload(stream, size);
+            if (tracer != null) {
+                tracer.trace(TraceEvent.BLOCKDATA, tc, -1, offset, null, size);
+            }
+            return new BlockData(payload, offset);
+        }
+        byte[] data = readBytes(stream, size);
+        if (tracer != null) {
+            tracer.trace(TraceEvent.BLOCKDATA, tc, -1, offset(stream), null, size);
+        }
         return new BlockData(data);
     }
 
-    public Instance readNewObject(DataInputStream stream) throws IOException {
-        ClassDescriptor cd = readClassDesc(stream);
-        int handle = newHandle();
-        debug("reading new object: handle " + hex(handle) + " classdesc " + cd.toString());
-        Instance instance = new Instance();
+    public Instance readNewObject(DataInput stream) throws IOException {
+        Instance instance = startNewObject(readClassDesc(stream), stream);
+        readClassData(stream, instance);
+        handles.completed(instance.handle);
+        if (tracer != null) {
+            tracer.trace(TraceEvent.OBJECT_END, ObjectStreamConstants.TC_OBJECT, instance.handle, offset(stream), instance.classDescriptor.name, 0);
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a new (still empty) instance of the given class under a new handle.
+     */
+    private Instance startNewObject(ClassDescriptor cd, DataInput stream) throws IOException {
+        int handle = newHandle();
+        if (tracer != null) {
+            tracer.trace(TraceEvent.OBJECT, ObjectStreamConstants.TC_OBJECT, handle, offset(stream), className(cd), 0);
+        }
+        Instance instance = new Instance();
         instance.classDescriptor = cd;
         instance.handle = handle;
         setHandle(handle, instance);
-        readClassData(stream, instance);
-        debug("done reading object for handle " + hex(handle));
         return instance;
     }
 
@@ -750,13 +1339,13 @@ public class JDeserialize implements Serializable {
      *
      * @param tc the last byte read from the stream; it must be one of the TC_* values
      * within ObjectStreamConstants.*
-     * @param stream the DataInputStream to read from
+     * @param stream the DataInput to read from
      * @param isBlockData whether or not to read TC_BLOCKDATA (this is the difference
      * between spec rules "object" and "content").
      * @return an object representing the last read item from the stream 
      * @throws IOException when a validity or I/O error occurs while reading
      */
-    public IContent readContent(byte tc, DataInputStream stream, boolean isBlockData) throws IOException {
+    public IContent readContent(byte tc, DataInput stream, boolean isBlockData) throws IOException {
         try {
             return switch (tc) {
                 case ObjectStreamConstants.TC_OBJECT -> readNewObject(stream);
@@ -782,6 +1371,243 @@ public class JDeserialize implements Serializable {
         }
     }
 
+    /**
+     * A partially-read instance or array of readContentIterative().
+     */
+    private static final class Frame {
+        boolean skip;
+        Instance instance;
+        ClassLayout layout;
+        boolean[] selectedReferences;
+        int pc;
+        int target;
+        List<IContent> annotationList;
+        int annotationClass;
+        Map<ClassDescriptor, List<IContent>> annotations;
+        ArrayObject array;
+        FieldType elementType;
+        int index;
+        int length;
+    }
+
+    /**
+     * Marks that readContentIterative() pushed a frame instead of reading a value.
+     */
+    private static final Object PENDING = new Object();
+
+    /**
+     * <p>
+     * Reads the next "content" production, like readContent(), and returns the same
+     * model.  Instead of recursing for each object, array and annotation in the graph, it
+     * keeps the partially-read objects and arrays on an explicit stack, so the nesting
+     * depth of the data isn't limited by the native stack.
+     * </p>
+     *
+     * <p>
+     * Everything that doesn't contain object data is still read by the methods used by
+     * readContent(): class descriptions (including their superclasses and class
+     * annotations), strings, enums and serialized exceptions.  Their nesting depends
+     * on the class hierarchy rather than on the data.
+     * </p>
+     *
+     * @param tc the last byte read from the stream
+     * @param stream the DataInput to read from
+     * @param isBlockData whether or not to read TC_BLOCKDATA
+     * @return an object representing the last read item from the stream
+     * @throws IOException when a validity or I/O error occurs while reading
+     */
+    public IContent readContentIterative(byte tc, DataInput stream, boolean isBlockData) throws IOException {
+        ArrayList<Frame> stack = new ArrayList<>();
+        try {
+            Object value = startContent(tc, stream, isBlockData, false, stack);
+            while (true) {
+                if (value != PENDING) {
+                    IContent c = (IContent) value;
+                    if (stack.isEmpty()) {
+                        return c;
+                    }
+                    if (c != null && c.isExceptionObject()) {
+                        // abandon everything being read, like ExceptionReadException does
+                        return c;
+                    }
+                    Frame f = stack.getLast();
+                    if (f.skip) {
+                        // values inside skipped objects and arrays are dropped
+                    } else if (f.array != null) {
+                        f.array.data.add(c);
+                    } else if (f.annotationList != null) {
+                        f.annotationList.add(c);
+                    } else if (f.target >= 0) {
+                        f.instance.references[f.target] = c;
+                    }
+                }
+                Frame f = stack.getLast();
+                value = f.layout == null ? stepArray(f, stream, stack) : stepInstance(f, stream, stack);
+            }
+        } catch (ExceptionReadException ere) {
+            return ere.getExceptionObject();
+        }
+    }
+
+    /**
+     * <p>
+     * Starts reading a value.  New objects and arrays of references are pushed onto the
+     * stack, and PENDING is returned; anything else is read completely.
+     * </p>
+     *
+     * <p>
+     * Objects whose class isn't selected by the filter are walked without creating an
+     * Instance.  Objects, arrays and strings read with skip set (values of skipped objects
+     * and arrays, and of fields the filter excludes) are walked without creating any
+     * content either.  Either way, the handle is marked as skipped, and references to it
+     * resolve to null; that includes a field type name or an enum constant name that
+     * refers to a skipped string.
+     * </p>
+     */
+    private Object startContent(byte tc, DataInput stream, boolean isBlockData, boolean skip, ArrayList<Frame> stack) throws IOException {
+        if (tc == ObjectStreamConstants.TC_OBJECT) {
+            ClassDescriptor cd = readClassDesc(stream);
+            Frame f = new Frame();
+            f.layout = cd.getLayout();
+            if (skip || (filter != null && !filter.selects(cd))) {
+                skipHandle(newHandle(), tc, cd, stream);
+                f.skip = true;
+            } else {
+                f.instance = startNewObject(cd, stream);
+                f.instance.primitiveData = new byte[f.layout.primitiveSize];
+                f.instance.references = new Object[f.layout.referenceCount];
+                if (filter != null) {
+                    f.selectedReferences = filter.selectedReferences(cd);
+                }
+            }
+            stack.add(f);
+            return PENDING;
+        } else if (tc == ObjectStreamConstants.TC_ARRAY) {
+            ClassDescriptor cd = readClassDesc(stream);
+            checkArrayClass(cd);
+            Frame f = new Frame();
+            f.elementType = elementType(cd.name.substring(1));
+            f.length = readArraySize(stream);
+            if (skip) {
+                skipHandle(newHandle(), tc, cd, stream);
+                f.skip = true;
+            } else {
+                f.array = startNewArray(cd, f.length, stream);
+            }
+            if (f.elementType.isPrimitive()) {
+                if (skip) {
+                    skipFully(stream, (long) f.length * f.elementType.width());
+                    return null;
+                }
+                f.array.data = readPrimitiveValues(f.elementType, f.length, stream);
+                handles.completed(f.array.handle);
+                return f.array;
+            }
+            if (!skip) {
+                f.array.data = new ObjectList(f.elementType);
+            }
+            stack.add(f);
+            return PENDING;
+        } else if (skip && (tc == ObjectStreamConstants.TC_STRING || tc == ObjectStreamConstants.TC_LONGSTRING)) {
+            skipNewString(tc, stream);
+            return null;
+        }
+        return readContent(tc, stream, isBlockData);
+    }
+
+    private void skipHandle(int handle, byte tc, ClassDescriptor cd, DataInput stream) {
+        if (tracer != null) {
+            tracer.trace(TraceEvent.SKIP, tc, handle, offset(stream), className(cd), 0);
+        }
+        skippedHandles.set(handle - ObjectStreamConstants.baseWireHandle);
+    }
+
+    private boolean isSkipped(int handle) {
+        return handle >= ObjectStreamConstants.baseWireHandle && skippedHandles.get(handle - ObjectStreamConstants.baseWireHandle);
+    }
+
+    static void skipFully(DataInput stream, long n) throws IOException {
+        while (n > 0) {
+            int skipped = stream.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException("unexpected end of stream while skipping " + n + " bytes");
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Continues reading an instance's class data, following its decoding plan, until a
+     * reference value has to be read or the instance is complete.
+     */
+    private Object stepInstance(Frame f, DataInput stream, ArrayList<Frame> stack) throws IOException {
+        int[] plan = f.layout.plan;
+        while (true) {
+            if (f.annotationList != null) {
+                byte tc = stream.readByte();
+                if (tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                    if (!f.skip) {
+                        f.annotations = addAnnotations(f.annotations, f.layout.classes[f.annotationClass], f.annotationList);
+                    }
+                    f.annotationList = null;
+                    continue;
+                }
+                if (tc == ObjectStreamConstants.TC_RESET) {
+                    reset();
+                    continue;
+                }
+                return startContent(tc, stream, true, f.skip, stack);
+            }
+            f.pc = f.layout.readPrimitives(f.pc, stream, f.skip ? null : f.instance.primitiveData);
+            if (f.pc == plan.length) {
+                stack.removeLast();
+                if (f.skip) {
+                    return null;
+                }
+                f.instance.annotations = f.annotations;
+                handles.completed(f.instance.handle);
+                if (tracer != null) {
+                    tracer.trace(TraceEvent.OBJECT_END, ObjectStreamConstants.TC_OBJECT, f.instance.handle, offset(stream), f.instance.classDescriptor.name, 0);
+                }
+                return f.instance;
+            }
+            int pc = f.pc;
+            f.pc += 2;
+            if (plan[pc] == ClassLayout.OP_ANNOTATIONS) {
+                f.annotationClass = plan[pc + 1];
+                f.annotationList = new ArrayList<>();
+                continue;
+            }
+            byte tc = stream.readByte();
+            if (plan[pc] == ClassLayout.OP_ARRAY && tc != ObjectStreamConstants.TC_ARRAY) {
+                throw new IOException("array type listed, but typecode is not TC_ARRAY: " + hex(tc));
+            }
+            int target = plan[pc + 1];
+            boolean selected = f.selectedReferences == null || f.selectedReferences[target];
+            f.target = selected ? target : -1;
+            return startContent(tc, stream, false, f.skip || !selected, stack);
+        }
+    }
+
+    /**
+     * Starts reading the next element of an array of references, or completes the array.
+     */
+    private Object stepArray(Frame f, DataInput stream, ArrayList<Frame> stack) throws IOException {
+        if (f.index == f.length) {
+            stack.removeLast();
+            if (f.array != null) {
+                handles.completed(f.array.handle);
+            }
+            return f.array;
+        }
+        byte tc = stream.readByte();
+        if (f.elementType == FieldType.ARRAY && tc != ObjectStreamConstants.TC_ARRAY) {
+            throw new IOException("array type listed, but typecode is not TC_ARRAY: " + hex(tc));
+        }
+        f.index++;
+        return startContent(tc, stream, false, f.skip, stack);
+    }
+
     /**
      * <p>
      * Reads in an entire ObjectOutputStream output on the given stream, filing 
@@ -803,37 +1629,368 @@ public class JDeserialize implements Serializable {
      * member-class-detection algorithm.
      */
     public void run(InputStream inputStream, boolean shouldConnect) throws IOException {
-        try (LoggerInputStream loggerStream = new LoggerInputStream(inputStream); DataInputStream stream = new DataInputStream(loggerStream)) {
-            short magic = stream.readShort();
-            if (magic != ObjectStreamConstants.STREAM_MAGIC) {
-                throw new ValidityException("file magic mismatch!  expected " + ObjectStreamConstants.STREAM_MAGIC + ", got " + magic);
+        run(new StreamInput(inputStream), shouldConnect);
+    }
+
+    /**
+     * <p>
+     * Reads in an entire ObjectOutputStream output from the given input; see
+     * run(InputStream, boolean).  Only the offset at which each top-level object starts
+     * is remembered; the data preceding a serialized exception is fetched from the
+     * input when an exception is actually found.
+     * </p>
+     *
+     * @param input the input to read from; it is closed when run() returns
+     * @param shouldConnect true if jdeserialize should attempt to identify and connect
+     * member classes with their enclosing classes
+     */
+    public void run(ISerialInput input, boolean shouldConnect) throws IOException {
+        try (input) {
+            readStreamHeader(input);
+            long[] splits = null;
+            evicting = liveness != null;
+            if (parallelism > 1 && tracer == null && segmentListener == null && retainedSegments < 0
+                    && itemListener == null && !evicting && handles instanceof HandleTable
+                    && input instanceof MappedInput mapped) {
+                StreamIndex index = indexStream(mapped);
+                if (index != null) {
+                    splits = chooseSplits(index, parallelism * 4);
+                }
             }
-            short streamVersion = stream.readShort();
-            if (streamVersion != ObjectStreamConstants.STREAM_VERSION) {
-                throw new ValidityException("file version mismatch!  expected " + ObjectStreamConstants.STREAM_VERSION + ", got " + streamVersion);
+            if (splits != null && splits.length > 0) {
+                readSegments((MappedInput) input, splits);
+            } else {
+                readItems(input, Long.MAX_VALUE);
             }
-            reset();
-            IContent = new ArrayList<>();
-            while (true) {
-                byte tc;
+        }
+        finishRun(shouldConnect);
+    }
+
+    /**
+     * Reads top-level items until the given offset or the end of the stream.
+     */
+    private void readItems(ISerialInput input, long end) throws IOException {
+        while (true) {
+            long start = input.position();
+            if (start >= end) {
+                break;
+            }
+            input.retainFrom(start);
+            byte tc;
+            try {
+                tc = input.readByte();
+                if (tc == ObjectStreamConstants.TC_RESET) {
+                    reset();
+                    continue;
+                }
+            } catch (EOFException ignored) {
+                break;
+            }
+            IContent content = readTopLevel(tc, input);
+            if (content != null) {
+                out.println("read: " + content);
+                addTopLevel(content, input, start);
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a top-level item, after its typecode.
+     *
+     * @return the content, or null if it was skipped by the filter
+     */
+    private IContent readTopLevel(byte tc, ISerialInput input) throws IOException {
+        return (recursive && filter == null) ? readContent(tc, input, true) : readContentIterative(tc, input, true);
+    }
+
+    /**
+     * Adds a top-level item to the content list, or hands it to the item listener;
+     * exceptions are kept together with the bytes of the item, starting at the given
+     * offset.
+     *
+     * @return the content that was added
+     */
+    private IContent addTopLevel(IContent content, ISerialInput input, long start) throws IOException {
+        if (content.isExceptionObject()) {
+            content = new ExceptionState(content, input.getBytes(start, input.position()));
+        }
+        if (itemListener != null) {
+            itemListener.itemRead(content, start);
+        } else {
+            IContent.add(content);
+        }
+        return content;
+    }
+
+    /**
+     * <p>
+     * Parses a single top-level item of a stream, without parsing the whole stream before
+     * it.  The index is used to skip to the start of the item's segment (see
+     * StreamIndex.getSegmentStart()); the items from there up to the requested one are
+     * parsed as well, since it may refer to them.  Nothing is printed.
+     * </p>
+     *
+     * <p>
+     * This starts a new run: afterwards, getContent() returns the items that were parsed,
+     * and the handle table holds their handles.  Unlike run(), this doesn't validate or
+     * connect anything, and doesn't close the input.
+     * </p>
+     *
+     * @param input the input that the index was built from
+     * @param index the index of the stream
+     * @param n the index of the item, from 0 to index.size() - 1
+     * @return the content of the item, or null if it is a TC_RESET or was skipped by the
+     * filter
+     * @throws IOException if an error occurs while reading, or the content is invalid
+     */
+    public IContent readItem(MappedInput input, StreamIndex index, int n) throws IOException {
+        int first = index.getSegmentStart(n);
+        startRun();
+        input.seek(index.getOffset(first));
+        IContent content = null;
+        for (int i = first; i <= n; i++) {
+            long start = input.position();
+            byte tc = input.readByte();
+            if (tc == ObjectStreamConstants.TC_RESET) {
+                reset();
+                content = null;
+                continue;
+            }
+            content = readTopLevel(tc, input);
+            if (content != null) {
+                content = addTopLevel(content, input, start);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * <p>
+     * Reads a single object (or other handle) of a stream, using its sidecar index.  The
+     * index is used to find the top-level item that contains the handle, which is then
+     * parsed with readItem().  The content returned is connected to everything it refers
+     * to, so this fetches the object's whole graph.
+     * </p>
+     *
+     * <p>
+     * As with readItem(), this starts a new run, and doesn't validate or connect anything.
+     * </p>
+     *
+     * @param input the stream that the index was built from
+     * @param index the index
+     * @param ordinal the position of the handle in the stream; see IndexFile
+     * @return the content of the handle, or null if it was skipped by the filter
+     * @throws IOException if an error occurs while reading, the content is invalid, the
+     * index doesn't match the stream, or the handle is reused within its item (by a
+     * nested TC_RESET or exception), so that it can't be looked up after parsing
+     */
+    public IContent readHandle(MappedInput input, IndexFile index, long ordinal) throws IOException {
+        if (input.length() != index.getStreamLength()) {
+            throw new ValidityException("index doesn't match the stream: it was built for " + index.getStreamLength()
+                    + " bytes, but the stream has " + input.length());
+        }
+        int n = index.getHandleItem(ordinal);
+        if (!index.isContiguous(n)) {
+            throw new ValidityException("can't read handle " + ordinal + ": item " + n + " reuses handle values");
+        }
+        readItem(input, index.getStreamIndex(), n);
+        return handles.get(index.getHandle(ordinal));
+    }
+
+    /**
+     * The result of parsing one segment of a stream on another thread.
+     */
+    private static final class Segment {
+        JDeserialize parser;
+        ByteArrayOutputStream output;
+    }
+
+    /**
+     * Indexes a stream for parallel parsing.
+     *
+     * @return the index, or null if the stream couldn't be scanned; the sequential parser
+     * then reports the problem as usual
+     */
+    private static StreamIndex indexStream(MappedInput input) {
+        try {
+            return StreamIndex.build(input.duplicate());
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Picks the top-level resets to split a stream at, so that there are at most the
+     * given number of segments, of about equal estimated cost.  The handle table is empty
+     * after a reset, so the segments between them can be parsed independently.  Streams
+     * that are reset after every record have far more resets than that, and parsing each
+     * of them separately costs more than it gains.
+     *
+     * @return the offsets of the resets to split at
+     */
+    private static long[] chooseSplits(StreamIndex index, int segments) {
+        long total = 0;
+        for (int i = 0; i < index.size(); i++) {
+            total += index.estimateCost(i);
+        }
+        long share = total / segments;
+        long[] splits = new long[segments - 1];
+        int n = 0;
+        long cost = 0;
+        long next = share;
+        for (int i = 0; i < index.size() && n < splits.length; i++) {
+            cost += index.estimateCost(i);
+            if (index.getTypecode(i) == ObjectStreamConstants.TC_RESET && cost >= next) {
+                splits[n++] = index.getOffset(i);
+                next = cost + share;
+            }
+        }
+        return Arrays.copyOf(splits, n);
+    }
+
+    /**
+     * <p>
+     * Parses the segments between top-level resets concurrently.  Every segment but the
+     * last is parsed by a separate JDeserialize on a pool thread; the last one is parsed
+     * by this object, so that its handle table ends up as the current one, just as if
+     * the stream had been read sequentially.
+     * </p>
+     *
+     * <p>
+     * The content, handle maps and output of the segments are then merged in stream
+     * order.  If segments fail, the exception of the first one is thrown, after the
+     * output of the segments before it has been written.
+     * </p>
+     */
+    private void readSegments(MappedInput input, long[] splits) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism - 1));
+        try {
+            List<Future<Segment>> futures = new ArrayList<>(splits.length);
+            long start = input.position();
+            for (long split : splits) {
+                long segmentStart = start;
+                futures.add(pool.submit(() -> readSegment(input.duplicate(), segmentStart, split)));
+                start = split + 1;
+            }
+
+            PrintStream realOut = out;
+            ByteArrayOutputStream lastOutput = new ByteArrayOutputStream();
+            IOException failure = null;
+            out = new PrintStream(lastOutput, false, realOut.charset());
+            try {
+                input.seek(start);
+                readItems(input, Long.MAX_VALUE);
+            } catch (IOException ioe) {
+                failure = ioe;
+            } finally {
+                out.flush();
+                out = realOut;
+            }
+
+            ArrayList<IContent> content = new ArrayList<>();
+            ArrayList<Map<Integer, IContent>> maps = new ArrayList<>();
+            for (Future<Segment> future : futures) {
+                Segment segment;
                 try {
-                    loggerStream.record();
-                    tc = stream.readByte();
-                    if (tc == ObjectStreamConstants.TC_RESET) {
-                        reset();
-                        continue;
+                    segment = future.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for segments");
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof IOException ioe) {
+                        throw ioe;
                     }
-                } catch (EOFException ignored) {
-                    break;
-                }
-                IContent content = readContent(tc, stream, true);
-                System.out.println("read: " + content.toString());
-                if (content.isExceptionObject()) {
-                    content = new ExceptionState(content, loggerStream.getRecordedData());
+                    throw new IllegalStateException(ee.getCause());
                 }
-                IContent.add(content);
+                out.write(segment.output.toByteArray());
+                content.addAll(segment.parser.IContent);
+                maps.addAll(segment.parser.handleMaps);
             }
+            out.write(lastOutput.toByteArray());
+            if (failure != null) {
+                throw failure;
+            }
+            segmentStart += content.size();
+            content.addAll(IContent);
+            maps.addAll(handleMaps);
+            IContent = content;
+            handleMaps.clear();
+            handleMaps.addAll(maps);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Segment readSegment(MappedInput input, long start, long end) throws IOException {
+        Segment segment = new Segment();
+        segment.output = new ByteArrayOutputStream();
+        JDeserialize parser = new JDeserialize();
+        parser.recursive = recursive;
+        parser.lazyBlockData = lazyBlockData;
+        parser.payloadThreshold = payloadThreshold;
+        parser.payloadDirectory = payloadDirectory;
+        parser.filter = filter == null ? null : filter.copy();
+        parser.out = new PrintStream(segment.output, false, out.charset());
+        parser.startRun();
+        input.seek(start);
+        parser.readItems(input, end);
+        // the TC_RESET at the end of the segment files the handle table
+        parser.reset();
+        parser.out.flush();
+        segment.parser = parser;
+        return segment;
+    }
+
+    /**
+     * Checks the stream magic and version, and prepares for a new run.
+     */
+    private void readStreamHeader(DataInput stream) throws IOException {
+        short magic = stream.readShort();
+        if (magic != ObjectStreamConstants.STREAM_MAGIC) {
+            throw new ValidityException("file magic mismatch!  expected " + ObjectStreamConstants.STREAM_MAGIC + ", got " + magic);
+        }
+        short streamVersion = stream.readShort();
+        if (streamVersion != ObjectStreamConstants.STREAM_VERSION) {
+            throw new ValidityException("file version mismatch!  expected " + ObjectStreamConstants.STREAM_VERSION + ", got " + streamVersion);
         }
+        startRun();
+    }
+
+    /**
+     * Clears the state of the previous run, and deletes its payload store.
+     */
+    private void startRun() throws IOException {
+        evicting = false;
+        handleOrdinal = 0;
+        handles.clear();
+        handleMaps.clear();
+        filedSegments.clear();
+        close();
+        IContent = new ArrayList<>();
+        segmentStart = 0;
+        reset();
+    }
+
+    /**
+     * Deletes the temporary file that payloads of the last run were copied into, if
+     * there is one (see setPayloadThreshold()).  The parser can still be used for
+     * another run.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        if (payloadStore != null) {
+            PayloadStore store = payloadStore;
+            payloadStore = null;
+            store.close();
+        }
+    }
+
+    /**
+     * Validates everything that was read, connects member classes if requested, and
+     * ends the final segment.
+     */
+    private void finishRun(boolean shouldConnect) throws IOException {
         for (IContent c : handles.values()) {
             c.validate();
         }
@@ -843,9 +2000,7 @@ public class JDeserialize implements Serializable {
                 c.validate();
             }
         }
-        if (!handles.isEmpty()) {
-            handleMaps.add(new HashMap<>(handles));
-        }
+        endSegment();
     }
 
     public void dump(OptionManager go) throws IOException {
@@ -865,13 +2020,13 @@ public class JDeserialize implements Serializable {
                     writer.println("# an individual blockdata block written to the stream.");
                 }
                 for (IContent content : IContent) {
-                    System.out.println(content.toString());
+                    out.println(content.toString());
                     if (content instanceof BlockData bd) {
                         if (mos != null) {
-                            writer.println(bd.buf.length);
+                            writer.println(bd.size);
                         }
                         if (outputStream != null) {
-                            outputStream.write(bd.buf);
+                            outputStream.write(bd.getData());
                         }
                     }
                 }
@@ -892,18 +2047,18 @@ public class JDeserialize implements Serializable {
             }
         }
         if (!go.hasOption("-nocontent")) {
-            System.out.println("//// BEGIN stream content output");
+            out.println("//// BEGIN stream content output");
             for (IContent c : IContent) {
-                System.out.println(c.toString());
+                out.println(c.toString());
             }
-            System.out.println("//// END stream content output");
-            System.out.println();
+            out.println("//// END stream content output");
+            out.println();
         }
 
         if (!go.hasOption("-noclasses")) {
             boolean showArray = go.hasOption("-showarrays");
             List<String> filter = go.getArguments("-filter");
-            System.out.println("//// BEGIN class declarations"
+            out.println("//// BEGIN class declarations"
                     + (showArray ? "" : " (excluding array classes)")
                     + ((filter != null && !filter.isEmpty())
                     ? " (exclusion filter " + filter.getFirst() + ")"
@@ -921,22 +2076,22 @@ public class JDeserialize implements Serializable {
                     if (filter != null && !filter.isEmpty() && cl.name.matches(filter.getFirst())) {
                         continue;
                     }
-                    dumpClassDesc(0, cl, System.out, go.hasOption("-fixnames"));
-                    System.out.println();
+                    dumpClassDesc(0, cl, out, go.hasOption("-fixnames"));
+                    out.println();
                 }
             }
-            System.out.println("//// END class declarations");
-            System.out.println();
+            out.println("//// END class declarations");
+            out.println();
         }
         if (!go.hasOption("-noinstances")) {
-            System.out.println("//// BEGIN instance dump");
+            out.println("//// BEGIN instance dump");
             for (IContent c : handles.values()) {
                 if (c instanceof Instance instance) {
-                    dump_Instance(instance, System.out);
+                    dump_Instance(instance, out);
                 }
             }
-            System.out.println("//// END instance dump");
-            System.out.println();
+            out.println("//// END instance dump");
+            out.println();
         }
     }
 
@@ -1017,7 +2172,7 @@ public class JDeserialize implements Serializable {
                     throw new ValidityException("couldn't connect inner classes: outer class not found for field name " + f.name);
                 }
                 if (!outercd.name.equals(f.getJavaType())) {
-                    throw new ValidityException("outer class field type doesn't match field type name: " + f.className.value + " outer class name " + outercd.name);
+                    throw new ValidityException("outer class field type doesn't match field type name: " + (f.className == null ? null : f.className.getValue()) + " outer class name " + outercd.name);
                 }
                 outercd.addInnerClass(cd);
                 cd.setIsLocalInnerClass(islocal);
@@ -1045,19 +2200,32 @@ public class JDeserialize implements Serializable {
                 newNames.put(cd, inner);
             }
         }
+        if (newNames.isEmpty()) {
+            return;
+        }
+        // Index the object fields by the class they refer to, so that each rename only
+        // touches its own fields.  Renamed classes can't take the name of another class,
+        // so the original names stay valid keys while renaming.
+        HashMap<String, List<Field>> referencingFields = new HashMap<>();
+        for (ClassDescriptor cd : classes.values()) {
+            if (cd.descriptorType == ClassDescriptorType.PROXYCLASS) {
+                continue;
+            }
+            for (Field f : cd.fields) {
+                if (f.type == FieldType.OBJECT) {
+                    referencingFields.computeIfAbsent(f.getJavaType(), k -> new ArrayList<>(2)).add(f);
+                }
+            }
+        }
         for (ClassDescriptor ncd : newNames.keySet()) {
             String newname = newNames.get(ncd);
             if (classnames.contains(newname)) {
                 throw new ValidityException("can't rename class from " + ncd.name + " to " + newname + " -- class already exists!");
             }
-            for (ClassDescriptor cd : classes.values()) {
-                if (cd.descriptorType == ClassDescriptorType.PROXYCLASS) {
-                    continue;
-                }
-                for (Field f : cd.fields) {
-                    if (f.getJavaType().equals(ncd.name)) {
-                        f.setReferenceTypeName(newname);
-                    }
+            List<Field> fields = referencingFields.get(ncd.name);
+            if (fields != null) {
+                for (Field f : fields) {
+                    f.setReferenceTypeName(newname);
                 }
             }
             if (classnames.remove(ncd.name) == false) {
@@ -1113,10 +2281,26 @@ public class JDeserialize implements Serializable {
         System.err.println(message);
     }
 
-    public void debug(String message) {
-        if (debugEnabled) {
-            System.out.println(message);
+    /**
+     * Returns the input offset to report to the trace listener.
+     */
+    private static long offset(DataInput stream) {
+        return stream instanceof ISerialInput input ? input.position() : -1;
+    }
+
+    private static String className(IContent content) {
+        if (content instanceof ClassDescriptor cd) {
+            return cd.name;
+        } else if (content instanceof Instance instance) {
+            return instance.classDescriptor.name;
+        } else if (content instanceof ArrayObject array) {
+            return array.classDescriptor.name;
+        } else if (content instanceof ClassObject clazz) {
+            return clazz.classDescriptor == null ? null : clazz.classDescriptor.name;
+        } else if (content instanceof EnumObject enumObject) {
+            return enumObject.classDescriptor.name;
         }
+        return null;
     }
 
     public static void main(String[] args) {
@@ -1133,6 +2317,22 @@ public class JDeserialize implements Serializable {
         go.addOption("-noclasses", 0, "Don't output class declarations.");
         go.addOption("-blockdata", 1, "Write raw blockdata out to the specified file.");
         go.addOption("-blockdatamanifest", 1, "Write blockdata manifest out to the specified file.");
+        go.addOption("-nomap", 0, "Read files as streams instead of mapping them into memory.");
+        go.addOption("-recursive", 0, "Parse with the recursive descent parser instead of the iterative one.");
+        go.addOption("-payloads", 1, "Keep strings, arrays of primitives and blockdata of more than N bytes out of memory: in the mapped file, or in a temporary file.");
+        go.addOption("-lazyblockdata", 0, "Leave blockdata in the mapped file instead of copying it; it's read back only for -blockdata.");
+        go.addOption("-includeclass", 1, "Only materialize instances of classes that match the given regex; may be repeated.");
+        go.addOption("-excludeclass", 1, "Don't materialize instances of classes that match the given regex; may be repeated.");
+        go.addOption("-includefield", 1, "Only materialize reference fields (name or class.name) that match the given regex; may be repeated.");
+        go.addOption("-excludefield", 1, "Don't materialize reference fields (name or class.name) that match the given regex; may be repeated.");
+        go.addOption("-threads", 1, "Parse files on the given number of threads, largest first; output stays in file order.");
+        go.addOption("-retain", 1, "Keep the handle maps and content of only the last N segments between resets (0 for none), so long streams take constant memory; content output covers only what's kept.");
+        go.addOption("-spill", 1, "Keep only the N most recently used complete objects, arrays and strings in memory, and spill the rest to a temporary file.");
+        go.addOption("-evict", 0, "Scan each file first, and drop objects from the handle table after their last reference; class and instance output then only covers what's left.");
+        go.addOption("-streamitems", 0, "Don't keep top-level items after printing them, so they're left out of the content output.");
+        go.addOption("-parallel", 1, "Parse the parts of each mapped stream between top-level resets on the given number of threads.");
+        go.addOption("-buildindex", 0, "Instead of parsing, write a sidecar index (see IndexFile) next to each file, named <file>" + IndexFile.SUFFIX + ".");
+        go.addOption("-ndjson", 0, "Write one JSON record per file as soon as it's done; files are parsed on one thread unless -threads is given.");
         try {
             go.parse(args);
         } catch (OptionManager.OptionParseException ope) {
@@ -1144,6 +2344,11 @@ public class JDeserialize implements Serializable {
             System.out.println(go.getDescriptionString());
             System.exit(1);
         }
+        checkNumberArgument(go, "-threads", 1, Integer.MAX_VALUE);
+        checkNumberArgument(go, "-parallel", 1, Integer.MAX_VALUE);
+        checkNumberArgument(go, "-retain", 0, Integer.MAX_VALUE);
+        checkNumberArgument(go, "-spill", 1, Integer.MAX_VALUE);
+        checkNumberArgument(go, "-payloads", 0, Long.MAX_VALUE);
         List<String> fargs = go.getFileArguments();
         if (fargs.isEmpty()) {
             debugerr("args: [options] file1 [file2 .. fileN]");
@@ -1151,13 +2356,44 @@ public class JDeserialize implements Serializable {
             System.err.println(go.getDescriptionString());
             System.exit(1);
         }
-        for (String filename : fargs) {
-            try (FileInputStream fis = new FileInputStream(filename)) {
+        List<String> files;
+        try {
+            files = BatchRunner.expandFiles(fargs);
+        } catch (IOException ioe) {
+            debugerr("error while listing files: " + ioe.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (go.hasOption("-buildindex")) {
+            for (String filename : files) {
+                try {
+                    IndexFile.build(Paths.get(filename), Paths.get(filename + IndexFile.SUFFIX));
+                    System.out.println("wrote index " + filename + IndexFile.SUFFIX);
+                } catch (IOException ioe) {
+                    debugerr("error while attempting to index file " + filename + ": " + ioe.getMessage());
+                }
+            }
+            return;
+        }
+        if (go.hasOption("-threads") || go.hasOption("-ndjson")) {
+            int threads = go.hasOption("-threads") ? Integer.parseInt(go.getArguments("-threads").getLast()) : 1;
+            if (go.hasOption("-blockdata") || go.hasOption("-blockdatamanifest")) {
+                debugerr("argument error: -blockdata and -blockdatamanifest can't be used with -threads or -ndjson");
+                System.exit(1);
+            }
+            try {
+                new BatchRunner(go, threads, go.hasOption("-ndjson")).run(files, System.out);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        for (String filename : files) {
+            try {
                 //TODO: figure out: JDeserialize jd = new JDeserialize(filename);
-                JDeserialize jd = new JDeserialize();
-                jd.debugEnabled = go.hasOption("-debug");
-                jd.run(fis, !go.hasOption("-noconnect"));
-                jd.dump(go);
+                try (JDeserialize jd = fromOptions(go, System.out)) {
+                    jd.runFile(filename, go);
+                }
             } catch (EOFException eoe) {
                 debugerr("EOF error while attempting to decode file " + filename + ": " + eoe.getMessage());
                 eoe.printStackTrace();
@@ -1167,4 +2403,98 @@ public class JDeserialize implements Serializable {
             }
         }
     }
+
+    /**
+     * Exits with an argument error unless the given option, if present, has a number
+     * from min to max as its argument.
+     */
+    private static void checkNumberArgument(OptionManager go, String option, long min, long max) {
+        if (!go.hasOption(option)) {
+            return;
+        }
+        long value;
+        try {
+            value = Long.parseLong(go.getArguments(option).getLast());
+        } catch (NumberFormatException nfe) {
+            value = min - 1;
+        }
+        if (value < min || value > max) {
+            debugerr("argument error: " + option + " needs " + (min == 1 ? "a positive number" : "a number of at least " + min)
+                    + (max < Long.MAX_VALUE ? " up to " + max : ""));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates a JDeserialize that is set up according to the command-line options.
+     *
+     * @param go the parsed options
+     * @param out the stream to print to
+     * @return the new JDeserialize
+     */
+    static JDeserialize fromOptions(OptionManager go, PrintStream out) {
+        JDeserialize jd = new JDeserialize();
+        jd.setOutput(out);
+        if (go.hasOption("-debug")) {
+            jd.setTraceListener(new PrintTraceListener(out));
+        }
+        jd.recursive = go.hasOption("-recursive");
+        jd.lazyBlockData = go.hasOption("-lazyblockdata");
+        if (go.hasOption("-payloads")) {
+            jd.setPayloadThreshold(Long.parseLong(go.getArguments("-payloads").getLast()));
+        }
+        if (go.hasOption("-streamitems")) {
+            jd.setItemListener((content, offset) -> {
+            });
+        }
+        if (go.hasOption("-retain")) {
+            jd.setRetainedSegments(Integer.parseInt(go.getArguments("-retain").getLast()));
+        }
+        if (go.hasOption("-parallel")) {
+            jd.setParallelism(Integer.parseInt(go.getArguments("-parallel").getLast()));
+        }
+        jd.setFilter(new ContentFilter(go.getArguments("-includeclass"), go.getArguments("-excludeclass"),
+                go.getArguments("-includefield"), go.getArguments("-excludefield")));
+        return jd;
+    }
+
+    /**
+     * Parses a file and dumps it according to the command-line options.  Regular files
+     * are mapped, unless -nomap is given.
+     *
+     * @param filename the file to read
+     * @param go the parsed options
+     * @throws IOException if an error occurs while reading or dumping the file
+     */
+    void runFile(String filename, OptionManager go) throws IOException {
+        Path path = Paths.get(filename);
+        if (go.hasOption("-evict")) {
+            try (MappedInput input = new MappedInput(path)) {
+                setLiveness(Liveness.build(input));
+            }
+        }
+        if (go.hasOption("-spill")) {
+            IHandleTable table = handles;
+            try (SpillingHandleTable spilling = new SpillingHandleTable(
+                    Integer.parseInt(go.getArguments("-spill").getLast()), null)) {
+                setHandleTable(spilling);
+                runAndDump(path, go);
+            } finally {
+                setHandleTable(table);
+            }
+        } else {
+            runAndDump(path, go);
+        }
+    }
+
+    private void runAndDump(Path path, OptionManager go) throws IOException {
+        if (!go.hasOption("-nomap") && Files.isRegularFile(path)) {
+            run(new MappedInput(path), !go.hasOption("-noconnect"));
+        } else {
+            try (FileInputStream fis = new FileInputStream(path.toFile())) {
+                run(fis, !go.hasOption("-noconnect"));
+            }
+        }
+        dump(go);
+    }
 }
@@ -0,0 +1,76 @@
+package org.unsynchronized;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+
+/**
+ * <p>
+ * A reference to content of a LazyGraph that hasn't necessarily been decoded yet.  The
+ * fields of instances, the elements of arrays and annotations decoded by a LazyGraph hold
+ * these in place of the content itself; resolve() decodes the content, or takes it from
+ * the graph's cache.
+ * </p>
+ *
+ * <p>
+ * A LazyContent only holds the position of its content, never the content itself, so
+ * that whatever was decoded can be dropped from the cache again while the objects that
+ * refer to it are still in use.
+ * </p>
+ */
+public class LazyContent extends Content {
+    private final LazyGraph graph;
+
+    /**
+     * The ordinal of the content's handle in the graph's index.
+     */
+    public final long ordinal;
+
+    /**
+     * The typecode of the content.
+     */
+    public final byte typecode;
+
+    /**
+     * Constructor.
+     *
+     * @param graph the graph the content belongs to
+     * @param ordinal the ordinal of the content's handle
+     * @param handle the handle
+     * @param tc the typecode of the content
+     * @throws ValidityException if tc isn't the typecode of content with a handle
+     */
+    public LazyContent(LazyGraph graph, long ordinal, int handle, byte tc) throws ValidityException {
+        super(typeOf(tc));
+        this.graph = graph;
+        this.ordinal = ordinal;
+        this.handle = handle;
+        this.typecode = tc;
+    }
+
+    private static ContentType typeOf(byte tc) throws ValidityException {
+        return switch (tc) {
+            case ObjectStreamConstants.TC_OBJECT -> ContentType.INSTANCE;
+            case ObjectStreamConstants.TC_ARRAY -> ContentType.ARRAY;
+            case ObjectStreamConstants.TC_CLASS -> ContentType.CLASS;
+            case ObjectStreamConstants.TC_ENUM -> ContentType.ENUM;
+            case ObjectStreamConstants.TC_STRING, ObjectStreamConstants.TC_LONGSTRING -> ContentType.STRING;
+            case ObjectStreamConstants.TC_CLASSDESC, ObjectStreamConstants.TC_PROXYCLASSDESC -> ContentType.CLASSDESC;
+            default -> throw new ValidityException("no content with a handle starts with " + JDeserialize.hex(tc));
+        };
+    }
+
+    /**
+     * Gets the content this refers to, decoding it if it isn't in the graph's cache.
+     *
+     * @return the content: an Instance, ArrayObject, ClassObject, EnumObject,
+     * StringObject or ClassDescriptor
+     * @throws IOException if the content can't be read, or is invalid
+     */
+    public IContent resolve() throws IOException {
+        return graph.get(ordinal);
+    }
+
+    public String toString() {
+        return "[lazy " + type + " " + JDeserialize.hex(handle) + " #" + ordinal + "]";
+    }
+}
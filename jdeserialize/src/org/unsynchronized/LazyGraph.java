@@ -0,0 +1,486 @@
+package org.unsynchronized;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A random-access view of the objects in a serialized stream, for walking a small part
+ * of a big stream.  Content is decoded one handle at a time, on demand: get() seeks to
+ * the offset that the stream's IndexFile gives for a handle, and decodes only that
+ * handle's own content.  Everything nested in it or referred to by it (field values,
+ * array elements, annotations) is represented by a LazyContent, and skipped in the
+ * input using the end offsets in the index; LazyContent.resolve() decodes it in turn.
+ * Only class descriptions, and the strings in them, are decoded along with the content
+ * that uses them.
+ * </p>
+ *
+ * <p>
+ * Decoded content is kept in a cache of a fixed number of handles, from which the least
+ * recently used content is dropped.  Since LazyContent doesn't hold on to what it refers
+ * to, memory use is bounded by the cache and by whatever the caller keeps, not by the
+ * size of the stream.  Content that is decoded again after it was dropped is a new
+ * object.
+ * </p>
+ *
+ * <p>
+ * Content is decoded the same way JDeserialize reads it, except that no ContentFilter
+ * is applied, block data is always left in the input (see BlockData), and content that
+ * was interrupted by a serialized exception can't be decoded.  Like the parser, this
+ * class is not thread-safe.
+ * </p>
+ */
+public class LazyGraph {
+    private final MappedInput input;
+    private final IndexFile index;
+    private final int capacity;
+    private final LinkedHashMap<Long, IContent> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long decodeCount;
+    private long hitCount;
+
+    /**
+     * The ordinal of the next handle assigned at the current input position.
+     */
+    private long next;
+
+    /**
+     * The first ordinal that a reference at the current input position can refer to.
+     */
+    private long floor;
+
+    /**
+     * Constructor.
+     *
+     * @param input the stream that the index was built from; the graph reads from a
+     * duplicate of it, so the input itself isn't moved
+     * @param index the index of the stream
+     * @param capacity the number of handles to keep decoded content of
+     * @throws ValidityException if the index doesn't match the stream
+     */
+    public LazyGraph(MappedInput input, IndexFile index, int capacity) throws ValidityException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid cache capacity: " + capacity);
+        }
+        if (input.length() != index.getStreamLength()) {
+            throw new ValidityException("index doesn't match the stream: it was built for " + index.getStreamLength()
+                    + " bytes, but the stream has " + input.length());
+        }
+        this.input = input.duplicate();
+        this.index = index;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the content of a handle, decoding it if it isn't in the cache.
+     *
+     * @param ordinal the position of the handle in the stream; see IndexFile
+     * @return the content: an Instance, ArrayObject, ClassObject, EnumObject,
+     * StringObject or ClassDescriptor
+     * @throws IOException if the content can't be read, is invalid, was interrupted by a
+     * serialized exception, or doesn't match the index
+     */
+    public IContent get(long ordinal) throws IOException {
+        IContent content = cache.get(ordinal);
+        if (content != null) {
+            hitCount++;
+            return content;
+        }
+        // class descriptions are decoded along with the content that uses them
+        long position = input.position();
+        long savedNext = next;
+        long savedFloor = floor;
+        try {
+            content = decode(ordinal);
+        } finally {
+            input.seek(position);
+            next = savedNext;
+            floor = savedFloor;
+        }
+        decodeCount++;
+        cache.put(ordinal, content);
+        if (cache.size() > capacity) {
+            Iterator<Long> eldest = cache.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return content;
+    }
+
+    /**
+     * Gets the content of a top-level item of the stream.
+     *
+     * @param n the index of the item in the index's StreamIndex
+     * @return the content, as returned by get(); a BlockData for block data; the exception
+     * object (with isExceptionObject() set) for a serialized exception; or null for a
+     * null reference or a TC_RESET
+     * @throws IOException if the content can't be read, is invalid, or doesn't match the
+     * index
+     */
+    public IContent getItem(int n) throws IOException {
+        StreamIndex items = index.getStreamIndex();
+        long start = items.getOffset(n);
+        next = index.getItemOrdinal(n);
+        floor = index.getItemOrdinal(items.getSegmentStart(n));
+        input.seek(start);
+        byte tc = input.readByte();
+        if (tc == ObjectStreamConstants.TC_RESET) {
+            return null;
+        }
+        boolean exception = tc == ObjectStreamConstants.TC_EXCEPTION;
+        if (exception) {
+            floor = next;
+            start = input.position();
+            tc = input.readByte();
+            if (tc != ObjectStreamConstants.TC_OBJECT) {
+                throw new ValidityException("stream signaled for an exception, but content is not an object!");
+            }
+        }
+        IContent content = readContent(tc, start, true);
+        if (content instanceof LazyContent lazy) {
+            content = lazy.resolve();
+        }
+        if (exception) {
+            content.setIsExceptionObject(true);
+        }
+        return content;
+    }
+
+    /**
+     * @return the number of handles whose content is currently cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of times content was decoded
+     */
+    public long getDecodeCount() {
+        return decodeCount;
+    }
+
+    /**
+     * @return the number of times get() found content in the cache
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Drops all decoded content.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private IContent decode(long ordinal) throws IOException {
+        if (index.getHandleEndOrdinal(ordinal) < 0) {
+            throw new ValidityException("can't decode handle " + ordinal + ": it was interrupted by an exception");
+        }
+        StreamIndex items = index.getStreamIndex();
+        floor = index.getItemOrdinal(items.getSegmentStart(index.getHandleItem(ordinal)));
+        next = ordinal;
+        long offset = index.getHandleOffset(ordinal);
+        int handle = index.getHandle(ordinal);
+        input.seek(offset);
+        byte tc = input.readByte();
+        if (tc != index.getHandleTypecode(ordinal)) {
+            throw new ValidityException("index doesn't match the stream: expected " + JDeserialize.hex(index.getHandleTypecode(ordinal))
+                    + " at offset " + offset + ", got " + JDeserialize.hex(tc));
+        }
+        IContent content = switch (tc) {
+            case ObjectStreamConstants.TC_STRING, ObjectStreamConstants.TC_LONGSTRING -> decodeString(tc, handle);
+            case ObjectStreamConstants.TC_CLASSDESC, ObjectStreamConstants.TC_PROXYCLASSDESC -> {
+                next = ordinal + 1;
+                yield decodeClassDesc(tc, handle);
+            }
+            default -> {
+                ClassDescriptor cd = readOwnClassDesc(ordinal, offset);
+                next = ordinal + 1;
+                yield switch (tc) {
+                    case ObjectStreamConstants.TC_OBJECT -> decodeObject(cd, handle);
+                    case ObjectStreamConstants.TC_ARRAY -> decodeArray(cd, handle);
+                    case ObjectStreamConstants.TC_ENUM -> decodeEnum(cd, handle);
+                    default -> new ClassObject(handle, cd);
+                };
+            }
+        };
+        long end = index.getHandleEndOffset(ordinal);
+        if (input.position() != end) {
+            throw new ValidityException("index doesn't match the stream: handle " + ordinal + " ends at offset "
+                    + input.position() + ", not " + end);
+        }
+        return content;
+    }
+
+    private StringObject decodeString(byte tc, int handle) throws IOException {
+        int length;
+        if (tc == ObjectStreamConstants.TC_STRING) {
+            length = input.readUnsignedShort();
+        } else {
+            long longLength = input.readLong();
+            if (longLength < 0) {
+                throw new IOException("invalid long string length: " + longLength);
+            }
+            if (longLength > Integer.MAX_VALUE) {
+                throw new IOException("long string is too long: " + longLength);
+            }
+            length = (int) longLength;
+        }
+        return new StringObject(handle, JDeserialize.readBytes(input, length));
+    }
+
+    private ClassDescriptor decodeClassDesc(byte tc, int handle) throws IOException {
+        ClassDescriptor cd;
+        if (tc == ObjectStreamConstants.TC_CLASSDESC) {
+            String name = input.readUTF();
+            long serialVersionUID = input.readLong();
+            cd = ClassDescriptor.readClassDesc(input, name, serialVersionUID, this::readString);
+        } else {
+            cd = ClassDescriptor.readProxyClassDesc(input);
+        }
+        cd.handle = handle;
+        cd.annotations = readAnnotations();
+        cd.superClass = readClassDesc();
+        return cd;
+    }
+
+    private Instance decodeObject(ClassDescriptor cd, int handle) throws IOException {
+        if (cd == null) {
+            throw new ValidityException("object classdesc can't be null!");
+        }
+        Instance instance = new Instance();
+        instance.classDescriptor = cd;
+        instance.handle = handle;
+        ClassLayout layout = cd.getLayout();
+        byte[] primitives = new byte[layout.primitiveSize];
+        Object[] references = new Object[layout.referenceCount];
+        instance.primitiveData = primitives;
+        instance.references = references;
+        Map<ClassDescriptor, List<IContent>> ann = null;
+        int[] plan = layout.plan;
+        for (int pc = layout.readPrimitives(0, input, primitives); pc < plan.length; pc = layout.readPrimitives(pc + 2, input, primitives)) {
+            switch (plan[pc]) {
+                case ClassLayout.OP_OBJECT -> references[plan[pc + 1]] = readValue(false);
+                case ClassLayout.OP_ARRAY -> references[plan[pc + 1]] = readValue(true);
+                default -> {
+                    if (ann == null) {
+                        ann = new HashMap<>(4);
+                    }
+                    ann.put(layout.classes[plan[pc + 1]], readAnnotations());
+                }
+            }
+        }
+        instance.annotations = ann;
+        return instance;
+    }
+
+    private ArrayObject decodeArray(ClassDescriptor cd, int handle) throws IOException {
+        if (cd == null) {
+            throw new ValidityException("array classdesc can't be null!");
+        }
+        JDeserialize.checkArrayClass(cd);
+        FieldType type = JDeserialize.elementType(cd.name.substring(1));
+        int size = JDeserialize.readArraySize(input);
+        if (type.isPrimitive()) {
+            return new ArrayObject(handle, cd, new ObjectList(type, JDeserialize.readPrimitiveArray(type, size, input)));
+        }
+        ObjectList elements = new ObjectList(type);
+        for (int i = 0; i < size; i++) {
+            elements.add(readValue(type == FieldType.ARRAY));
+        }
+        return new ArrayObject(handle, cd, elements);
+    }
+
+    private EnumObject decodeEnum(ClassDescriptor cd, int handle) throws IOException {
+        if (cd == null) {
+            throw new IOException("enum classdesc can't be null!");
+        }
+        StringObject value = readString();
+        cd.addEnum(value.getValue());
+        return new EnumObject(handle, cd, value);
+    }
+
+    /**
+     * Reads the class description of an object, array, enum constant or class.  Its
+     * handle was assigned before the handle of the content that uses it, so an inline
+     * class description is found by its offset, just after the content's typecode.
+     */
+    private ClassDescriptor readOwnClassDesc(long ordinal, long offset) throws IOException {
+        byte tc = input.readByte();
+        if (tc != ObjectStreamConstants.TC_CLASSDESC && tc != ObjectStreamConstants.TC_PROXYCLASSDESC) {
+            input.seek(offset + 1);
+            return readClassDesc();
+        }
+        long cd = ordinal - 1;
+        while (cd >= floor && index.getHandleOffset(cd) != offset + 1) {
+            cd--;
+        }
+        if (cd < floor) {
+            throw new ValidityException("index doesn't match the stream: no class description at offset " + (offset + 1));
+        }
+        IContent content = get(cd);
+        input.seek(index.getHandleEndOffset(cd));
+        return (ClassDescriptor) content;
+    }
+
+    private ClassDescriptor readClassDesc() throws IOException {
+        long start = input.position();
+        byte tc = input.readByte();
+        if (tc == ObjectStreamConstants.TC_NULL) {
+            return null;
+        }
+        long ordinal;
+        if (tc == ObjectStreamConstants.TC_REFERENCE) {
+            ordinal = readReference();
+        } else if (tc == ObjectStreamConstants.TC_CLASSDESC || tc == ObjectStreamConstants.TC_PROXYCLASSDESC) {
+            ordinal = skipContent(tc, start);
+        } else {
+            throw new ValidityException("expected a valid class description starter got " + JDeserialize.hex(tc));
+        }
+        IContent content = get(ordinal);
+        if (!(content instanceof ClassDescriptor)) {
+            throw new IOException("referenced object not a class description!");
+        }
+        return (ClassDescriptor) content;
+    }
+
+    private StringObject readString() throws IOException {
+        long start = input.position();
+        byte tc = input.readByte();
+        long ordinal;
+        if (tc == ObjectStreamConstants.TC_REFERENCE) {
+            ordinal = readReference();
+        } else if (tc == ObjectStreamConstants.TC_STRING || tc == ObjectStreamConstants.TC_LONGSTRING) {
+            ordinal = skipContent(tc, start);
+        } else if (tc == ObjectStreamConstants.TC_NULL) {
+            throw new ValidityException("stream signaled TC_NULL when string type expected!");
+        } else {
+            throw new IOException("invalid tc byte in string: " + JDeserialize.hex(tc));
+        }
+        IContent content = get(ordinal);
+        if (!(content instanceof StringObject)) {
+            throw new IOException("got reference for a string, but referenced value was something else!");
+        }
+        return (StringObject) content;
+    }
+
+    private List<IContent> readAnnotations() throws IOException {
+        List<IContent> list = new ArrayList<>();
+        while (true) {
+            long start = input.position();
+            byte tc = input.readByte();
+            if (tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                return list;
+            }
+            if (tc == ObjectStreamConstants.TC_RESET) {
+                floor = next;
+                continue;
+            }
+            list.add(readContent(tc, start, true));
+        }
+    }
+
+    private IContent readValue(boolean array) throws IOException {
+        long start = input.position();
+        byte tc = input.readByte();
+        if (array && tc != ObjectStreamConstants.TC_ARRAY) {
+            throw new IOException("array type listed, but typecode is not TC_ARRAY: " + JDeserialize.hex(tc));
+        }
+        return readContent(tc, start, false);
+    }
+
+    /**
+     * Reads a value that is nested in other content, without decoding it.
+     *
+     * @return a LazyContent, a BlockData or null
+     */
+    private IContent readContent(byte tc, long start, boolean isBlockData) throws IOException {
+        switch (tc) {
+            case ObjectStreamConstants.TC_NULL -> {
+                return null;
+            }
+            case ObjectStreamConstants.TC_BLOCKDATA, ObjectStreamConstants.TC_BLOCKDATALONG -> {
+                if (!isBlockData) {
+                    throw new IOException("got a isBlockData TC_*, but not allowed here: " + JDeserialize.hex(tc));
+                }
+                int size = tc == ObjectStreamConstants.TC_BLOCKDATA ? input.readUnsignedByte() : input.readInt();
+                if (size < 0) {
+                    throw new IOException("invalid value for blockdata size: " + size);
+                }
+                long offset = input.position();
+                if (offset + size > input.length()) {
+                    throw new EOFException("unexpected end of stream in blockdata of " + size + " bytes");
+                }
+                input.seek(offset + size);
+                return new BlockData(input, offset, size);
+            }
+            case ObjectStreamConstants.TC_REFERENCE -> {
+                long ordinal = readReference();
+                return new LazyContent(this, ordinal, index.getHandle(ordinal), index.getHandleTypecode(ordinal));
+            }
+            default -> {
+                long ordinal = skipContent(tc, start);
+                return new LazyContent(this, ordinal, index.getHandle(ordinal), tc);
+            }
+        }
+    }
+
+    /**
+     * Skips over new content with a handle, using the end offset in the index.
+     *
+     * @return the ordinal of the content's handle
+     */
+    private long skipContent(byte tc, long start) throws IOException {
+        long ordinal = next;
+        switch (tc) {
+            case ObjectStreamConstants.TC_OBJECT, ObjectStreamConstants.TC_ARRAY, ObjectStreamConstants.TC_ENUM,
+                 ObjectStreamConstants.TC_CLASS -> {
+                byte ctc = input.readByte();
+                if (ctc == ObjectStreamConstants.TC_CLASSDESC || ctc == ObjectStreamConstants.TC_PROXYCLASSDESC) {
+                    // the inline class description comes first
+                    ordinal = next < index.getHandleCount() ? index.getHandleEndOrdinal(next) : -1;
+                }
+            }
+            case ObjectStreamConstants.TC_STRING, ObjectStreamConstants.TC_LONGSTRING, ObjectStreamConstants.TC_CLASSDESC,
+                 ObjectStreamConstants.TC_PROXYCLASSDESC -> {
+            }
+            default -> throw new IOException("unknown content tc byte in stream: " + JDeserialize.hex(tc));
+        }
+        if (ordinal < 0 || ordinal >= index.getHandleCount() || index.getHandleOffset(ordinal) != start) {
+            throw new ValidityException("index doesn't match the stream: no handle at offset " + start);
+        }
+        long end = index.getHandleEndOffset(ordinal);
+        if (end < 0) {
+            throw new ValidityException("content at offset " + start + " was interrupted by an exception");
+        }
+        input.seek(end);
+        next = index.getHandleEndOrdinal(ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Reads the handle of a TC_REFERENCE.  Handle values are assigned consecutively from
+     * the last reset, so the handle is found by counting back from the last one assigned.
+     *
+     * @return the ordinal of the handle
+     */
+    private long readReference() throws IOException {
+        int handle = input.readInt();
+        long last = next - 1;
+        if (last >= floor && handle >= ObjectStreamConstants.baseWireHandle) {
+            int value = index.getHandle(last);
+            if (handle <= value && last - (value - handle) >= floor) {
+                return last - (value - handle);
+            }
+        }
+        throw new ValidityException("can't find an entry for handle " + JDeserialize.hex(handle));
+    }
+}
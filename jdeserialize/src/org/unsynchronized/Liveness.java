@@ -0,0 +1,152 @@
+package org.unsynchronized;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The last use of every handle of a stream, found by a StreamScanner pass before the
+ * stream is parsed; see JDeserialize.setLiveness().  Without it, the parser has to keep
+ * every handle in its table until the next reset, since a TC_REFERENCE to it might
+ * follow anywhere.  With it, a handle is dropped from the table right after the last
+ * TC_REFERENCE to it, or not stored at all if there is none, so the table only holds the
+ * handles that are still going to be referred to.
+ * </p>
+ *
+ * <p>
+ * Handles are identified by their ordinal (see IScanListener), and their last use by the
+ * input offset of the TC_REFERENCE.  Only handles that are referred to take up space,
+ * 16 bytes each once the scan is done, so the liveness of a stream of mostly
+ * unshared objects stays small however long the stream is.
+ * </p>
+ */
+public class Liveness {
+    private long handleCount;
+    private long[] ordinals;
+    private long[] lastUses;
+
+    /**
+     * Records the last use of each referenced handle in an open-addressing table keyed by
+     * ordinal, since references don't arrive in the order of the handles they refer to.
+     */
+    private static final class Builder implements IScanListener {
+        long handleCount;
+        long[] keys = newKeys(1024);
+        long[] values = new long[1024];
+        int size;
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+
+        private static int slot(long[] keys, long ordinal) {
+            int mask = keys.length - 1;
+            int i = Long.hashCode(ordinal * 0x9e3779b97f4a7c15L) & mask;
+            while (keys[i] != -1 && keys[i] != ordinal) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        public void assigned(int handle, byte tc, long offset, String className) {
+            handleCount++;
+        }
+
+        public void finished(long ordinal, long offset) {
+        }
+
+        public void referenced(long ordinal, long offset) {
+            int i = slot(keys, ordinal);
+            if (keys[i] == -1) {
+                if (size >= keys.length / 2) {
+                    grow();
+                    i = slot(keys, ordinal);
+                }
+                keys[i] = ordinal;
+                size++;
+            }
+            values[i] = offset;
+        }
+
+        private void grow() {
+            if (keys.length == 1 << 30) {
+                throw new IllegalStateException("too many referenced handles: " + size);
+            }
+            long[] oldKeys = keys, oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new long[keys.length];
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != -1) {
+                    int i = slot(keys, oldKeys[j]);
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    private Liveness() {
+    }
+
+    /**
+     * Scans a stream and records the last use of each of its handles.
+     *
+     * @param input the input, positioned at the start of the stream (at the header)
+     * @return the liveness of the stream's handles
+     * @throws IOException if the stream can't be read, or isn't valid; see
+     * StreamScanner for the limitations of the scan
+     */
+    public static Liveness build(ISerialInput input) throws IOException {
+        Builder builder = new Builder();
+        StreamScanner scanner = new StreamScanner(input);
+        scanner.setListener(builder);
+        while (scanner.next()) {
+            // the builder does all the work
+        }
+        Liveness liveness = new Liveness();
+        liveness.handleCount = builder.handleCount;
+        liveness.ordinals = new long[builder.size];
+        int n = 0;
+        for (long key : builder.keys) {
+            if (key != -1) {
+                liveness.ordinals[n++] = key;
+            }
+        }
+        Arrays.sort(liveness.ordinals);
+        liveness.lastUses = new long[n];
+        for (int i = 0; i < n; i++) {
+            liveness.lastUses[i] = builder.values[Builder.slot(builder.keys, liveness.ordinals[i])];
+        }
+        return liveness;
+    }
+
+    /**
+     * @return the number of handles the stream assigns
+     */
+    public long getHandleCount() {
+        return handleCount;
+    }
+
+    /**
+     * @param ordinal the ordinal of a handle
+     * @return the input offset of the last TC_REFERENCE to the handle, or -1 if there is
+     * none; also -1 for ordinals beyond the end of the stream
+     */
+    public long getLastUse(long ordinal) {
+        int i = Arrays.binarySearch(ordinals, ordinal);
+        return i >= 0 ? lastUses[i] : -1;
+    }
+
+    /**
+     * Tells whether a handle is referred to at all.  Handles beyond the end of the scanned
+     * stream are considered live, so a parser never drops a handle it can't account for.
+     *
+     * @param ordinal the ordinal of a handle
+     * @return false if no TC_REFERENCE refers to the handle
+     */
+    public boolean isReferenced(long ordinal) {
+        return ordinal < 0 || ordinal >= handleCount || Arrays.binarySearch(ordinals, ordinal) >= 0;
+    }
+}
@@ -0,0 +1,283 @@
+package org.unsynchronized;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * An ISerialInput that maps a file into memory.  Primitive reads are served straight
+ * from the mapped buffers, without the per-call overhead of a chain of InputStreams.
+ * </p>
+ *
+ * <p>
+ * A single MappedByteBuffer can't address more than 2GB, so the file is mapped as a
+ * series of 1GB segments.  Reads that straddle two segments are assembled byte by byte;
+ * everything else is a single absolute get on one segment.
+ * </p>
+ */
+public class MappedInput implements ISerialInput {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+
+    private final ByteBuffer[] segments;
+    private final long length;
+    private long position;
+
+    /**
+     * Maps the given file.  The file is mapped read-only; the channel is closed before
+     * the constructor returns, since mappings stay valid without it.
+     *
+     * @param path the file to map
+     * @throws IOException if the file can't be opened or mapped
+     */
+    public MappedInput(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.length = channel.size();
+            int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            this.segments = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long offset = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, length - offset));
+            }
+        }
+    }
+
+    private MappedInput(ByteBuffer[] segments, long length) {
+        this.segments = segments;
+        this.length = length;
+    }
+
+    /**
+     * Returns a new MappedInput over the same mapping, with its own position (starting
+     * at 0).  Since the mapped buffers are only read with absolute gets, the duplicates
+     * can be used by different threads.
+     *
+     * @return the new input
+     */
+    public MappedInput duplicate() {
+        return new MappedInput(segments, length);
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Moves the read position.
+     *
+     * @param newPosition the new offset from the start of the file
+     */
+    public void seek(long newPosition) {
+        if (newPosition < 0 || newPosition > length) {
+            throw new IllegalArgumentException("invalid position " + newPosition + " (length " + length + ")");
+        }
+        position = newPosition;
+    }
+
+    public void retainFrom(long start) {
+    }
+
+    public byte[] getBytes(long start, long end) throws IOException {
+        if (start < 0 || end < start || end > length || end - start > Integer.MAX_VALUE) {
+            throw new IOException("invalid range " + start + "-" + end);
+        }
+        byte[] buf = new byte[(int) (end - start)];
+        copy(start, buf, 0, buf.length);
+        return buf;
+    }
+
+    /**
+     * Gets a range of the file as a read-only buffer.  A range within one segment is a
+     * view of the mapping; a range that straddles two segments is copied.
+     *
+     * @param start the offset of the first byte
+     * @param count the number of bytes
+     * @return a buffer positioned at the first byte, with count bytes remaining
+     * @throws IOException if the range isn't within the file
+     */
+    public ByteBuffer slice(long start, int count) throws IOException {
+        if (start < 0 || count < 0 || start > length - count) {
+            throw new IOException("invalid range " + start + "+" + count);
+        }
+        ByteBuffer segment = segments[(int) (start >>> SEGMENT_SHIFT)];
+        int segmentOffset = (int) (start & SEGMENT_MASK);
+        if (segmentOffset <= segment.limit() - count) {
+            return segment.slice(segmentOffset, count).asReadOnlyBuffer();
+        }
+        byte[] buf = new byte[count];
+        copy(start, buf, 0, count);
+        return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies bytes from the given offset into an array, crossing segments as needed.
+     */
+    private void copy(long offset, byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuffer segment = segments[(int) (offset >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int) (offset & SEGMENT_MASK);
+            int n = Math.min(len, segment.limit() - segmentOffset);
+            segment.get(segmentOffset, b, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns the segment that contains the next width bytes, or null if they straddle
+     * a segment boundary.
+     */
+    private ByteBuffer segmentFor(int width) throws EOFException {
+        if (length - position < width) {
+            throw new EOFException();
+        }
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        if ((int) (position & SEGMENT_MASK) > segment.limit() - width) {
+            return null;
+        }
+        return segment;
+    }
+
+    /**
+     * Assembles a big-endian value of the given width one byte at a time.
+     */
+    private long readSlow(int width) throws IOException {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (readByte() & 0xff);
+        }
+        return value;
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (length - position < len) {
+            throw new EOFException();
+        }
+        copy(position, b, off, len);
+        position += len;
+    }
+
+    /**
+     * Always true; the mapping stays valid until the MappedInput is garbage-collected.
+     */
+    public boolean isPersistent() {
+        return true;
+    }
+
+    public int skipBytes(int n) {
+        int skipped = (int) Math.max(0, Math.min(n, length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        if (position >= length) {
+            throw new EOFException();
+        }
+        byte b = segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+        position++;
+        return b;
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        ByteBuffer segment = segmentFor(2);
+        if (segment == null) {
+            return (short) readSlow(2);
+        }
+        short s = segment.getShort((int) (position & SEGMENT_MASK));
+        position += 2;
+        return s;
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        ByteBuffer segment = segmentFor(4);
+        if (segment == null) {
+            return (int) readSlow(4);
+        }
+        int i = segment.getInt((int) (position & SEGMENT_MASK));
+        position += 4;
+        return i;
+    }
+
+    public long readLong() throws IOException {
+        ByteBuffer segment = segmentFor(8);
+        if (segment == null) {
+            return readSlow(8);
+        }
+        long l = segment.getLong((int) (position & SEGMENT_MASK));
+        position += 8;
+        return l;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public String readLine() throws IOException {
+        if (position >= length) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        while (position < length) {
+            int c = readUnsignedByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (position < length && segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK)) == '\n') {
+                    position++;
+                }
+                break;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    /**
+     * Ends the input; subsequent reads hit EOF.  The mappings themselves are released
+     * when the MappedInput is garbage-collected.
+     */
+    public void close() {
+        position = length;
+    }
+}
@@ -1,28 +1,106 @@
 package org.unsynchronized;
 
-import java.io.Serial;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.RandomAccess;
 
 /**
  * <p>Typed collection used for storing the values of a serialized array.  </p>
  *
- * <p>Primitive types are stored using their corresponding objects; for instance, an int is
- * stored as an Integer.  To determine whether or not this is an array of ints or of
- * Integer instances, check the name in the arrayobj's class description.</p>
+ * <p>Arrays of primitives are backed by an unboxed Java array of the matching type
+ * (byte[] for "[B", int[] for "[I", and so on); see getPrimitiveArray().  The List view
+ * boxes elements lazily as they are accessed, so an int is returned as an Integer.  To
+ * determine whether or not this is an array of ints or of Integer instances, check the
+ * name in the arrayobj's class description.</p>
+ *
+ * <p>Large arrays of primitives may instead be backed by a Payload, the raw bytes of the
+ * array in the input or in a temporary file (see JDeserialize.setPayloadThreshold()).
+ * Elements are then decoded from a window of the payload as they are accessed, and
+ * getPrimitiveArray() copies the whole array into memory.</p>
  */
-public class ObjectList extends ArrayList<Object> {
-    @Serial
-    private static final long serialVersionUID = 2277356908919248L;
-
+public class ObjectList extends AbstractList<Object> implements RandomAccess {
     private final FieldType fieldType;
+    private final ArrayList<Object> elements;
+    private Object primitiveArray;
+    private final int primitiveLength;
+    private final Payload payload;
+
+    /**
+     * The number of elements that toString() shows of an array in a payload.
+     */
+    private static final int PREVIEW_ELEMENTS = 64;
+
+    /**
+     * The elements of a payload-backed array that were decoded last, starting at
+     * element windowStart.
+     */
+    private byte[] window;
+    private int windowStart;
 
     /**
-     * Constructor.
+     * Constructor for arrays of references.  Elements are added with add().
+     *
      * @param ft field type of the array
      */
     public ObjectList(FieldType ft) {
         super();
         this.fieldType = ft;
+        this.elements = new ArrayList<>();
+        this.primitiveArray = null;
+        this.primitiveLength = 0;
+        this.payload = null;
+    }
+
+    /**
+     * Constructor for arrays of primitives.  The list is a read-only view of the given
+     * array.
+     *
+     * @param ft field type of the array; must be a primitive type
+     * @param primitiveArray array of the Java type corresponding to ft (e.g. long[] for
+     * FieldType.LONG)
+     */
+    public ObjectList(FieldType ft, Object primitiveArray) {
+        super();
+        this.fieldType = ft;
+        this.elements = null;
+        this.primitiveArray = primitiveArray;
+        this.payload = null;
+        this.primitiveLength = switch (ft) {
+            case BYTE -> ((byte[]) primitiveArray).length;
+            case CHAR -> ((char[]) primitiveArray).length;
+            case DOUBLE -> ((double[]) primitiveArray).length;
+            case FLOAT -> ((float[]) primitiveArray).length;
+            case INTEGER -> ((int[]) primitiveArray).length;
+            case LONG -> ((long[]) primitiveArray).length;
+            case SHORT -> ((short[]) primitiveArray).length;
+            case BOOLEAN -> ((boolean[]) primitiveArray).length;
+            default -> throw new IllegalArgumentException("not a primitive field type: " + ft);
+        };
+    }
+
+    /**
+     * Constructor for arrays of primitives whose values are left in a payload.  The list
+     * is read-only.
+     *
+     * @param ft field type of the array; must be a primitive type
+     * @param payload the big-endian values of the array, as found in the stream
+     * @param length the number of elements
+     */
+    public ObjectList(FieldType ft, Payload payload, int length) {
+        super();
+        if (!ft.isPrimitive() || payload.length() != (long) length * ft.width()) {
+            throw new IllegalArgumentException("payload of " + payload.length() + " bytes doesn't hold " + length
+                    + " elements of type " + ft);
+        }
+        this.fieldType = ft;
+        this.elements = null;
+        this.primitiveArray = null;
+        this.primitiveLength = length;
+        this.payload = payload;
     }
 
     /**
@@ -34,9 +112,107 @@ public class ObjectList extends ArrayList<Object> {
         return fieldType;
     }
 
+    /**
+     * Gets the unboxed backing array of an array of primitives.  The values of an array
+     * that is backed by a payload are read into a new array the first time.
+     *
+     * @return a byte[], char[], double[], float[], int[], long[], short[] or boolean[],
+     * depending on the field type; or null if this is an array of references
+     * @throws UncheckedIOException if the payload can't be read
+     */
+    public Object getPrimitiveArray() {
+        if (primitiveArray == null && payload != null) {
+            try {
+                primitiveArray = JDeserialize.readPrimitiveArray(fieldType, primitiveLength,
+                        new DataInputStream(payload.openStream()));
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+        return primitiveArray;
+    }
+
+    /**
+     * @return the payload holding the values of the array, or null if the array isn't
+     * backed by one
+     */
+    public Payload getPayload() {
+        return payload;
+    }
+
+    public Object get(int index) {
+        if (payload != null && primitiveArray == null) {
+            return getFromPayload(index);
+        }
+        if (primitiveArray == null) {
+            return elements.get(index);
+        }
+        return switch (fieldType) {
+            case BYTE -> ((byte[]) primitiveArray)[index];
+            case CHAR -> ((char[]) primitiveArray)[index];
+            case DOUBLE -> ((double[]) primitiveArray)[index];
+            case FLOAT -> ((float[]) primitiveArray)[index];
+            case INTEGER -> ((int[]) primitiveArray)[index];
+            case LONG -> ((long[]) primitiveArray)[index];
+            case SHORT -> ((short[]) primitiveArray)[index];
+            case BOOLEAN -> ((boolean[]) primitiveArray)[index];
+            default -> throw new IllegalStateException("not a primitive field type: " + fieldType);
+        };
+    }
+
+    private Object getFromPayload(int index) {
+        if (index < 0 || index >= primitiveLength) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + primitiveLength);
+        }
+        int width = fieldType.width();
+        int perWindow = JDeserialize.ARRAY_CHUNK_SIZE / width;
+        if (window == null || index < windowStart || index >= windowStart + window.length / width) {
+            windowStart = index - index % perWindow;
+            int count = Math.min(perWindow, primitiveLength - windowStart);
+            try {
+                ByteBuffer bytes = payload.getBuffer((long) windowStart * width, count * width);
+                window = new byte[count * width];
+                bytes.get(window);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+        return fieldType.decode(window, (index - windowStart) * width);
+    }
+
+    public int size() {
+        return elements == null ? primitiveLength : elements.size();
+    }
+
+    public boolean add(Object o) {
+        if (elements == null) {
+            throw new UnsupportedOperationException("arrays of primitives are read-only");
+        }
+        modCount++;
+        return elements.add(o);
+    }
+
+    public Object set(int index, Object o) {
+        if (elements == null) {
+            throw new UnsupportedOperationException("arrays of primitives are read-only");
+        }
+        return elements.set(index, o);
+    }
+
     public String toString() {
         StringBuffer sb = new StringBuffer();
         sb.append("[ObjectList size=").append(this.size());
+        if (payload != null) {
+            // don't read the whole payload just to print it
+            int count = Math.min(primitiveLength, PREVIEW_ELEMENTS);
+            for (int i = 0; i < count; i++) {
+                sb.append(i == 0 ? " " : ", ").append(get(i));
+            }
+            if (count < primitiveLength) {
+                sb.append(", ... (").append(payload.length()).append(" bytes)");
+            }
+            return sb.toString();
+        }
         boolean first = true;
         for (Object o : this) {
             if (first) {
@@ -45,7 +221,7 @@ public class ObjectList extends ArrayList<Object> {
             } else {
                 sb.append(", ");
             }
-            sb.append(o.toString());
+            sb.append(o);
         }
         return sb.toString();
     }
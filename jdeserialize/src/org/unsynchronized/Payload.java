@@ -0,0 +1,188 @@
+package org.unsynchronized;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * The bytes of a string, an array of primitives or block data that the parser didn't
+ * copy into memory because there were too many of them; see
+ * JDeserialize.setPayloadThreshold().  The bytes are either left in the input, if the
+ * input keeps them around (see ISerialInput.isPersistent(), e.g. a MappedInput), or
+ * copied into a PayloadStore, a temporary file.
+ * </p>
+ *
+ * <p>
+ * A payload may be longer than 2GB, the most a Java array can hold, so the accessors
+ * work on parts of it: getBuffer() for random access, openStream() to go over all of it,
+ * and getBytes() for the parts that do fit into an array.  The bytes are exactly those
+ * of the stream: big-endian values for arrays, modified UTF-8 for strings.
+ * </p>
+ */
+public class Payload {
+    private static final int CHUNK_SIZE = 65536;
+
+    private final ISerialInput input;
+    private final PayloadStore store;
+    private final long position;
+    private final long length;
+
+    /**
+     * Constructor for bytes that are left in the input.
+     *
+     * @param input the input; must be persistent
+     * @param position the offset of the bytes in the input
+     * @param length the number of bytes
+     */
+    public Payload(ISerialInput input, long position, long length) {
+        this.input = input;
+        this.store = null;
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * Constructor for bytes that were copied into a store.
+     *
+     * @param store the store
+     * @param position the offset of the bytes in the store's file
+     * @param length the number of bytes
+     */
+    Payload(PayloadStore store, long position, long length) {
+        this.input = null;
+        this.store = store;
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * @return the number of bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the bytes were left in the input, false if they were copied into a
+     * temporary file
+     */
+    public boolean isInInput() {
+        return input != null;
+    }
+
+    /**
+     * Gets some of the bytes as a buffer.  Bytes that were left in a MappedInput come
+     * back as a read-only view of the mapping where possible, without copying them.
+     *
+     * @param start the offset of the first byte, from the start of the payload
+     * @param count the number of bytes
+     * @return a buffer positioned at the first byte, with count bytes remaining
+     * @throws IOException if the bytes can't be read
+     */
+    public ByteBuffer getBuffer(long start, int count) throws IOException {
+        check(start, count);
+        if (input instanceof MappedInput mapped) {
+            return mapped.slice(position + start, count);
+        }
+        if (input != null) {
+            return ByteBuffer.wrap(input.getBytes(position + start, position + start + count));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        store.read(buffer, position + start);
+        return buffer.flip();
+    }
+
+    /**
+     * Copies some of the bytes into an array.
+     *
+     * @param start the offset of the first byte, from the start of the payload
+     * @param end the offset after the last byte
+     * @return the bytes
+     * @throws IOException if the bytes can't be read, or there are more than an array
+     * can hold
+     */
+    public byte[] getBytes(long start, long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE - 8) {
+            throw new IOException("too many bytes for an array: " + (end - start));
+        }
+        check(start, end - start);
+        if (input != null) {
+            return input.getBytes(position + start, position + end);
+        }
+        byte[] bytes = new byte[(int) (end - start)];
+        store.read(ByteBuffer.wrap(bytes), position + start);
+        return bytes;
+    }
+
+    /**
+     * Copies all of the bytes into an array.
+     *
+     * @return the bytes
+     * @throws IOException if the bytes can't be read, or there are more than an array
+     * can hold
+     */
+    public byte[] getBytes() throws IOException {
+        return getBytes(0, length);
+    }
+
+    /**
+     * Opens a stream over the bytes, which reads them a chunk at a time.  The stream
+     * doesn't need to be closed.
+     *
+     * @return the stream
+     */
+    public InputStream openStream() {
+        return new InputStream() {
+            private long offset;
+            private ByteBuffer chunk = ByteBuffer.allocate(0);
+
+            private boolean fill() throws IOException {
+                if (!chunk.hasRemaining() && offset < length) {
+                    int n = (int) Math.min(CHUNK_SIZE, length - offset);
+                    chunk = getBuffer(offset, n);
+                    offset += n;
+                }
+                return chunk.hasRemaining();
+            }
+
+            public int read() throws IOException {
+                return fill() ? chunk.get() & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, chunk.remaining());
+                chunk.get(b, off, n);
+                return n;
+            }
+
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, chunk.remaining() + length - offset));
+                long inChunk = Math.min(skipped, chunk.remaining());
+                chunk.position(chunk.position() + (int) inChunk);
+                offset += skipped - inChunk;
+                return skipped;
+            }
+
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, chunk.remaining() + length - offset);
+            }
+        };
+    }
+
+    private void check(long start, long count) throws IOException {
+        if (start < 0 || count < 0 || start + count > length) {
+            throw new IOException("invalid range " + start + "+" + count + " of a payload of " + length + " bytes");
+        }
+    }
+
+    public String toString() {
+        return "[payload: " + length + " bytes" + (input != null ? " at " + position : "") + "]";
+    }
+}
@@ -0,0 +1,95 @@
+package org.unsynchronized;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * A temporary file that large payloads are copied into when the input doesn't keep
+ * them around; see Payload.  Payloads are appended one after the other, and read back
+ * with positional reads.
+ * </p>
+ *
+ * <p>
+ * The file is opened with DELETE_ON_CLOSE, which on most systems removes it from its
+ * directory right away; its space is given back once the store is closed, or once the
+ * store and all of its payloads have been garbage collected.
+ * </p>
+ */
+public class PayloadStore implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(JDeserialize.ARRAY_CHUNK_SIZE);
+    private long length;
+
+    /**
+     * Constructor.  The file is created right away.
+     *
+     * @param directory the directory to create the file in, or null for the default
+     * temporary directory
+     * @throws IOException if the file can't be created
+     */
+    public PayloadStore(Path directory) throws IOException {
+        Path path = directory == null ? Files.createTempFile("jdeserialize", ".payload")
+                : Files.createTempFile(directory, "jdeserialize", ".payload");
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Copies bytes from a stream to the end of the file, a chunk at a time.
+     *
+     * @param in the stream
+     * @param count the number of bytes to copy
+     * @return the payload of the copied bytes
+     * @throws IOException if the bytes can't be read or written
+     */
+    public Payload append(DataInput in, long count) throws IOException {
+        long start = length;
+        for (long left = count; left > 0; ) {
+            int n = (int) Math.min(left, buffer.capacity());
+            buffer.clear();
+            in.readFully(buffer.array(), 0, n);
+            buffer.limit(n);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, length + buffer.position());
+            }
+            length += n;
+            left -= n;
+        }
+        return new Payload(this, start, count);
+    }
+
+    /**
+     * Fills a buffer from the given offset of the file.
+     */
+    void read(ByteBuffer target, long position) throws IOException {
+        long start = position - target.position();
+        while (target.hasRemaining()) {
+            if (channel.read(target, start + target.position()) < 0) {
+                throw new IOException("payload file is truncated at " + (start + target.position()) + " of " + length);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes in the file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Deletes the file.  The payloads in it can't be read any more.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
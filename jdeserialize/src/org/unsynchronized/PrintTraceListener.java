@@ -0,0 +1,48 @@
+package org.unsynchronized;
+
+import java.io.PrintStream;
+
+/**
+ * An ITraceListener that prints every event as a line of text; this is what the -debug
+ * option installs.
+ */
+public class PrintTraceListener implements ITraceListener {
+    private final PrintStream ps;
+
+    /**
+     * Constructor.
+     *
+     * @param ps the stream to print to
+     */
+    public PrintTraceListener(PrintStream ps) {
+        this.ps = ps;
+    }
+
+    public void trace(TraceEvent event, byte tc, int handle, long offset, String className, long size) {
+        ps.println(format(event, tc, handle, offset, className, size));
+    }
+
+    /**
+     * Formats an event as a single line.  The parameters are those of
+     * ITraceListener.trace().
+     *
+     * @return the formatted event
+     */
+    public static String format(TraceEvent event, byte tc, int handle, long offset, String className, long size) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(event.name().toLowerCase()).append(": tc ").append(JDeserialize.hex(tc));
+        if (handle != -1) {
+            sb.append(" handle ").append(JDeserialize.hex(handle));
+        }
+        if (offset >= 0) {
+            sb.append(" offset ").append(offset);
+        }
+        if (className != null) {
+            sb.append(" class ").append(className);
+        }
+        if (size != 0) {
+            sb.append(" size ").append(size);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,753 @@
+package org.unsynchronized;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * A handle table that keeps a bounded number of instances, arrays and strings in memory,
+ * and spills the least recently used ones to a temporary file; see
+ * JDeserialize.setHandleTable().  Spilled content is read back in when it is looked up
+ * again, by a TC_REFERENCE or by anything that walks the table.  Class descriptions,
+ * classes and enum constants are few and are shared by everything, so they always stay
+ * in memory.
+ * </p>
+ *
+ * <p>
+ * Instances and arrays are only spilled once the parser has told the table that they're
+ * complete (see IHandleTable.completed()); until then, they stay in memory no matter how
+ * many there are.  Once spilled, an entry is never written again, since complete content
+ * doesn't change.
+ * </p>
+ *
+ * <p>
+ * Spilled content is only read back once it has been garbage collected: as long as
+ * anything else still refers to it (an item the caller kept, or other content in
+ * memory), lookups return that same object.  In the spill file, references to other
+ * instances, arrays and strings are kept as handles, and whatever they refer to that is
+ * gone from memory as well is read back in together with them, so paged-in content is
+ * always complete.  Memory use is therefore bounded by the number of entries kept in
+ * memory, by what those entries refer to, and by what the caller keeps, plus 8 bytes for
+ * each handle of the table.
+ * </p>
+ */
+public class SpillingHandleTable implements IHandleTable, Closeable {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int READ_SIZE = 512;
+
+    private static final byte NULL = 0;
+    private static final byte HANDLE = 1;
+    private static final byte RETAINED = 2;
+    private static final byte BLOCKDATA = 3;
+
+    private static final byte INSTANCE = 0;
+    private static final byte ARRAY = 1;
+    private static final byte PRIMITIVE_ARRAY = 2;
+    private static final byte STRING = 3;
+
+    /**
+     * A reference that can only be filled in once everything a page-in brings back has
+     * been decoded.
+     */
+    private static final class Patch {
+        final Object target;
+        final int slot;
+        final int handle;
+
+        Patch(Object target, int slot, int handle) {
+            this.target = target;
+            this.slot = slot;
+            this.handle = handle;
+        }
+
+        @SuppressWarnings("unchecked")
+        void apply(IContent content) {
+            if (target instanceof Object[] references) {
+                references[slot] = content;
+            } else if (target instanceof ObjectList list) {
+                list.set(slot, content);
+            } else {
+                ((List<IContent>) target).set(slot, content);
+            }
+        }
+    }
+
+    /**
+     * A spilled entry that may still be in memory.
+     */
+    private static final class Evicted extends WeakReference<IContent> {
+        final int index;
+
+        Evicted(int index, IContent content, ReferenceQueue<IContent> queue) {
+            super(content, queue);
+            this.index = index;
+        }
+    }
+
+    private final int capacity;
+    private final FileChannel channel;
+
+    /**
+     * Content that is never spilled, and instances and arrays that aren't complete yet.
+     */
+    private final HashMap<Integer, IContent> resident = new HashMap<>();
+    private final LinkedHashMap<Integer, IContent> hot = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<Integer, Evicted> evicted = new HashMap<>();
+    private final ReferenceQueue<IContent> collected = new ReferenceQueue<>();
+
+    /**
+     * The spill file position of the record of each handle, or -1 if it wasn't spilled.
+     */
+    private long[] positions = newPositions(INITIAL_CAPACITY);
+
+    /**
+     * Handles that were removed, but may still be needed to page in content that refers
+     * to them.
+     */
+    private final BitSet removed = new BitSet();
+    private int limit;
+    private int size;
+
+    /**
+     * Content that spilled records refer to without spilling it; see RETAINED.
+     */
+    private final ArrayList<IContent> retained = new ArrayList<>();
+    private final IdentityHashMap<IContent, Integer> retainedIndexes = new IdentityHashMap<>();
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_SIZE);
+    private ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private DataOutputStream recordOut = new DataOutputStream(record);
+    private long fileLength;
+    private long spillCount;
+    private long pageInCount;
+
+    /**
+     * Constructor.  The spill file is created right away, and deleted by close().
+     *
+     * @param capacity the number of complete instances, arrays and strings to keep in
+     * memory
+     * @param directory the directory to create the spill file in, or null for the default
+     * temporary directory
+     * @throws IOException if the spill file can't be created
+     */
+    public SpillingHandleTable(int capacity, Path directory) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        Path path = directory == null ? Files.createTempFile("jdeserialize", ".spill")
+                : Files.createTempFile(directory, "jdeserialize", ".spill");
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    private static long[] newPositions(int length) {
+        long[] positions = new long[length];
+        Arrays.fill(positions, -1);
+        return positions;
+    }
+
+    /**
+     * Content whose bytes are in a payload is small, and stays in memory like class
+     * descriptions do.
+     */
+    private static boolean isSpillable(IContent content) {
+        if (content instanceof StringObject string) {
+            return string.getPayload() == null;
+        }
+        if (content instanceof ArrayObject array) {
+            return array.data == null || array.data.getPayload() == null;
+        }
+        return content instanceof Instance;
+    }
+
+    public IContent get(int handle) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        if (index < 0 || index >= limit || removed.get(index)) {
+            return null;
+        }
+        return find(index);
+    }
+
+    /**
+     * Finds the content of a handle, whether or not it was removed.
+     */
+    private IContent find(int index) {
+        expunge();
+        IContent content = inMemory(index);
+        if (content != null && evicted.remove(index) != null && !removed.get(index)) {
+            makeHot(index, content);
+        }
+        if (content == null && positions[index] >= 0) {
+            try {
+                content = pageIn(index);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Finds the content of a handle if it is still in memory.
+     */
+    private IContent inMemory(int index) {
+        IContent content = resident.get(index);
+        if (content == null) {
+            content = hot.get(index);
+        }
+        if (content == null) {
+            Evicted ref = evicted.get(index);
+            if (ref != null) {
+                content = ref.get();
+            }
+        }
+        return content;
+    }
+
+    public void put(int handle, IContent content) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        if (index < 0) {
+            throw new IllegalArgumentException("handle below baseWireHandle: " + JDeserialize.hex(handle));
+        }
+        if (index >= positions.length) {
+            long[] grown = newPositions(Math.max(positions.length * 2, index + 1));
+            System.arraycopy(positions, 0, grown, 0, positions.length);
+            positions = grown;
+        }
+        if (index >= limit) {
+            limit = index + 1;
+        }
+        if (resident.remove(index) == null && hot.remove(index) == null && positions[index] < 0) {
+            size++;
+        }
+        evicted.remove(index);
+        positions[index] = -1;
+        removed.clear(index);
+        if (content instanceof StringObject && isSpillable(content)) {
+            makeHot(index, content);
+        } else {
+            resident.put(index, content);
+        }
+    }
+
+    /**
+     * Moves an instance or array to the entries that may be spilled.
+     */
+    public void completed(int handle) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        IContent content = resident.get(index);
+        if (content == null || !isSpillable(content)) {
+            return;
+        }
+        resident.remove(index);
+        if (removed.get(index)) {
+            spill(index, content);
+        } else {
+            makeHot(index, content);
+        }
+    }
+
+    /**
+     * Removes the content of a handle.  Instances, arrays and strings are spilled rather
+     * than dropped, since content that was spilled earlier may still refer to them.
+     */
+    public void remove(int handle) {
+        int index = handle - ObjectStreamConstants.baseWireHandle;
+        if (index < 0 || index >= limit || removed.get(index)) {
+            return;
+        }
+        IContent content = hot.remove(index);
+        if (content != null) {
+            spill(index, content);
+        } else {
+            content = resident.get(index);
+            if (content != null && !isSpillable(content)) {
+                resident.remove(index);
+            } else if (content == null && positions[index] < 0) {
+                return;
+            }
+        }
+        removed.set(index);
+        size--;
+    }
+
+    private void makeHot(int index, IContent content) {
+        hot.put(index, content);
+        if (hot.size() > capacity) {
+            Iterator<Map.Entry<Integer, IContent>> eldest = hot.entrySet().iterator();
+            Map.Entry<Integer, IContent> entry = eldest.next();
+            eldest.remove();
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Forgets the spilled entries that have been garbage collected.
+     */
+    private void expunge() {
+        Reference<? extends IContent> ref;
+        while ((ref = collected.poll()) != null) {
+            evicted.remove(((Evicted) ref).index, ref);
+        }
+    }
+
+    private void spill(int index, IContent content) {
+        expunge();
+        evicted.put(index, new Evicted(index, content, collected));
+        if (positions[index] >= 0) {
+            return;
+        }
+        try {
+            positions[index] = write(content);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        spillCount++;
+    }
+
+    public void clear() {
+        resident.clear();
+        hot.clear();
+        evicted.clear();
+        while (collected.poll() != null) {
+            // the map they were in is gone
+        }
+        Arrays.fill(positions, 0, limit, -1);
+        removed.clear();
+        retained.clear();
+        retainedIndexes.clear();
+        limit = 0;
+        size = 0;
+        buffer.clear();
+        fileLength = 0;
+        try {
+            channel.truncate(0);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets a view of all content in the table; spilled content is paged in as the view
+     * is iterated over.
+     */
+    public Collection<IContent> values() {
+        return new AbstractCollection<>() {
+            public Iterator<IContent> iterator() {
+                return new Iterator<>() {
+                    private int index = advance(0);
+
+                    private int advance(int from) {
+                        while (from < limit && (removed.get(from) || (positions[from] < 0 && inMemory(from) == null))) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    public boolean hasNext() {
+                        return index < limit;
+                    }
+
+                    public IContent next() {
+                        if (index >= limit) {
+                            throw new NoSuchElementException();
+                        }
+                        IContent c = find(index);
+                        index = advance(index + 1);
+                        return c;
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Copies the table into a new map, paging in everything that was spilled.
+     */
+    public Map<Integer, IContent> toMap() {
+        HashMap<Integer, IContent> map = new HashMap<>(size * 4 / 3 + 1);
+        Iterator<IContent> it = values().iterator();
+        while (it.hasNext()) {
+            IContent c = it.next();
+            map.put(c.getHandle(), c);
+        }
+        return map;
+    }
+
+    /**
+     * @return the number of entries written to the spill file since the table was created
+     */
+    public long getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * @return the number of entries read back from the spill file since the table was
+     * created
+     */
+    public long getPageInCount() {
+        return pageInCount;
+    }
+
+    /**
+     * Deletes the spill file.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Appends the record of an entry to the spill file.
+     *
+     * @return the position of the record
+     */
+    private long write(IContent content) throws IOException {
+        record.reset();
+        recordOut.writeInt(0);
+        if (content instanceof StringObject string) {
+            recordOut.writeByte(STRING);
+            recordOut.writeInt(string.handle);
+            byte[] data = string.getData();
+            recordOut.writeInt(data.length);
+            recordOut.write(data);
+        } else if (content instanceof Instance instance) {
+            recordOut.writeByte(INSTANCE);
+            recordOut.writeInt(instance.handle);
+            recordOut.writeBoolean(instance.isExceptionObject);
+            writeValue(instance.classDescriptor);
+            writeBytes(instance.primitiveData);
+            if (instance.references == null) {
+                recordOut.writeInt(-1);
+            } else {
+                recordOut.writeInt(instance.references.length);
+                for (Object value : instance.references) {
+                    writeValue(value);
+                }
+            }
+            if (instance.annotations == null) {
+                recordOut.writeInt(-1);
+            } else {
+                recordOut.writeInt(instance.annotations.size());
+                for (Map.Entry<ClassDescriptor, List<IContent>> entry : instance.annotations.entrySet()) {
+                    writeValue(entry.getKey());
+                    recordOut.writeInt(entry.getValue().size());
+                    for (IContent value : entry.getValue()) {
+                        writeValue(value);
+                    }
+                }
+            }
+        } else {
+            ArrayObject array = (ArrayObject) content;
+            FieldType type = array.data.getFieldType();
+            recordOut.writeByte(type.isPrimitive() ? PRIMITIVE_ARRAY : ARRAY);
+            recordOut.writeInt(array.handle);
+            writeValue(array.classDescriptor);
+            recordOut.writeByte(type.ch());
+            recordOut.writeInt(array.data.size());
+            if (type.isPrimitive()) {
+                writePrimitiveArray(type, array.data.getPrimitiveArray(), array.data.size());
+            } else {
+                for (Object value : array.data) {
+                    writeValue(value);
+                }
+            }
+        }
+        recordOut.flush();
+        byte[] bytes = record.toByteArray();
+        if (bytes.length > BUFFER_SIZE) {
+            // don't hold on to the space of a big array
+            record = new ByteArrayOutputStream();
+            recordOut = new DataOutputStream(record);
+        }
+        ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+        long position = fileLength + buffer.position();
+        if (bytes.length > buffer.remaining()) {
+            flush();
+        }
+        if (bytes.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(bytes), fileLength);
+            fileLength += bytes.length;
+        } else {
+            buffer.put(bytes);
+        }
+        return position;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            recordOut.writeInt(-1);
+        } else {
+            recordOut.writeInt(bytes.length);
+            recordOut.write(bytes);
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            recordOut.writeByte(NULL);
+        } else if (value instanceof BlockData blockData && blockData.getPayload() == null) {
+            recordOut.writeByte(BLOCKDATA);
+            writeBytes(blockData.getData());
+        } else if (isSpillable((IContent) value)) {
+            recordOut.writeByte(HANDLE);
+            recordOut.writeInt(((IContent) value).getHandle());
+        } else {
+            Integer n = retainedIndexes.get(value);
+            if (n == null) {
+                n = retained.size();
+                retained.add((IContent) value);
+                retainedIndexes.put((IContent) value, n);
+            }
+            recordOut.writeByte(RETAINED);
+            recordOut.writeInt(n);
+        }
+    }
+
+    private void writePrimitiveArray(FieldType type, Object array, int length) throws IOException {
+        switch (type) {
+            case BYTE -> recordOut.write((byte[]) array);
+            case BOOLEAN -> {
+                for (boolean b : (boolean[]) array) {
+                    recordOut.writeBoolean(b);
+                }
+            }
+            default -> {
+                ByteBuffer bytes = ByteBuffer.allocate(length * type.width());
+                switch (type) {
+                    case CHAR -> bytes.asCharBuffer().put((char[]) array);
+                    case DOUBLE -> bytes.asDoubleBuffer().put((double[]) array);
+                    case FLOAT -> bytes.asFloatBuffer().put((float[]) array);
+                    case INTEGER -> bytes.asIntBuffer().put((int[]) array);
+                    case LONG -> bytes.asLongBuffer().put((long[]) array);
+                    case SHORT -> bytes.asShortBuffer().put((short[]) array);
+                    default -> throw new IllegalStateException("not a primitive type: " + type);
+                }
+                recordOut.write(bytes.array());
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer, fileLength);
+        fileLength += buffer.limit();
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, position + bytes.position());
+        }
+    }
+
+    /**
+     * Reads the record at a position of the spill file, which may still be buffered.
+     */
+    private DataInputStream read(long position) throws IOException {
+        byte[] bytes;
+        if (position >= fileLength) {
+            int start = (int) (position - fileLength);
+            bytes = Arrays.copyOfRange(buffer.array(), start + 4, start + 4 + buffer.getInt(start));
+        } else {
+            // most records are small enough to come in with their length
+            readBuffer.clear().limit((int) Math.min(readBuffer.capacity(), fileLength - position));
+            readFully(readBuffer, position);
+            int length = readBuffer.getInt(0);
+            if (length <= readBuffer.limit() - 4) {
+                bytes = Arrays.copyOfRange(readBuffer.array(), 4, 4 + length);
+            } else {
+                bytes = new byte[length];
+                readFully(ByteBuffer.wrap(bytes), position + 4);
+            }
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private void readFully(ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                throw new IOException("spill file is truncated at " + (position + bytes.position()));
+            }
+        }
+    }
+
+    /**
+     * Reads a spilled entry back in, along with everything it refers to that was spilled
+     * too.  The entries are decoded one after the other, and the references between them
+     * are filled in at the end, so long chains of references don't take up stack.
+     */
+    private IContent pageIn(int index) throws IOException {
+        HashMap<Integer, IContent> decoded = new HashMap<>();
+        HashMap<Integer, IContent> found = new HashMap<>();
+        ArrayList<Patch> patches = new ArrayList<>();
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.add(index);
+        while (!work.isEmpty()) {
+            int next = work.poll();
+            if (decoded.containsKey(next)) {
+                continue;
+            }
+            int patchCount = patches.size();
+            decoded.put(next, decode(read(positions[next]), patches));
+            pageInCount++;
+            for (int i = patchCount; i < patches.size(); i++) {
+                int target = patches.get(i).handle - ObjectStreamConstants.baseWireHandle;
+                if (decoded.containsKey(target) || found.containsKey(target)) {
+                    continue;
+                }
+                IContent content = target < 0 || target >= limit ? null : inMemory(target);
+                if (content != null) {
+                    found.put(target, content);
+                } else {
+                    if (target < 0 || target >= limit || positions[target] < 0) {
+                        throw new IOException("spilled content refers to missing handle "
+                                + JDeserialize.hex(patches.get(i).handle));
+                    }
+                    work.add(target);
+                }
+            }
+        }
+        for (Patch patch : patches) {
+            int target = patch.handle - ObjectStreamConstants.baseWireHandle;
+            IContent content = decoded.get(target);
+            patch.apply(content != null ? content : found.get(target));
+        }
+        IContent content = decoded.get(index);
+        for (Map.Entry<Integer, IContent> entry : decoded.entrySet()) {
+            if (removed.get(entry.getKey())) {
+                evicted.put(entry.getKey(), new Evicted(entry.getKey(), entry.getValue(), collected));
+            } else {
+                makeHot(entry.getKey(), entry.getValue());
+            }
+        }
+        return content;
+    }
+
+    private IContent decode(DataInputStream in, List<Patch> patches) throws IOException {
+        byte kind = in.readByte();
+        int handle = in.readInt();
+        switch (kind) {
+            case STRING -> {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                return new StringObject(handle, data);
+            }
+            case INSTANCE -> {
+                Instance instance = new Instance();
+                instance.handle = handle;
+                instance.isExceptionObject = in.readBoolean();
+                instance.classDescriptor = (ClassDescriptor) readValue(in, null, 0, patches);
+                instance.primitiveData = readBytes(in);
+                int n = in.readInt();
+                if (n >= 0) {
+                    instance.references = new Object[n];
+                    for (int i = 0; i < n; i++) {
+                        instance.references[i] = readValue(in, instance.references, i, patches);
+                    }
+                }
+                int classCount = in.readInt();
+                if (classCount >= 0) {
+                    instance.annotations = new LinkedHashMap<>();
+                    for (int i = 0; i < classCount; i++) {
+                        ClassDescriptor cd = (ClassDescriptor) readValue(in, null, 0, patches);
+                        int count = in.readInt();
+                        ArrayList<IContent> list = new ArrayList<>(count);
+                        for (int j = 0; j < count; j++) {
+                            list.add((IContent) readValue(in, list, j, patches));
+                        }
+                        instance.annotations.put(cd, list);
+                    }
+                }
+                return instance;
+            }
+            case ARRAY, PRIMITIVE_ARRAY -> {
+                ClassDescriptor cd = (ClassDescriptor) readValue(in, null, 0, patches);
+                FieldType type = FieldType.get(in.readByte());
+                int n = in.readInt();
+                ObjectList data;
+                if (kind == PRIMITIVE_ARRAY) {
+                    data = new ObjectList(type, JDeserialize.readPrimitiveArray(type, n, in));
+                } else {
+                    data = new ObjectList(type);
+                    for (int i = 0; i < n; i++) {
+                        data.add(readValue(in, data, i, patches));
+                    }
+                }
+                return new ArrayObject(handle, cd, data);
+            }
+            default -> throw new IOException("invalid spill record kind: " + kind);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a value; a reference by handle is read as null and recorded as a patch for
+     * the given slot of the target.
+     */
+    private Object readValue(DataInputStream in, Object target, int slot, List<Patch> patches) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL -> {
+                return null;
+            }
+            case HANDLE -> {
+                patches.add(new Patch(target, slot, in.readInt()));
+                return null;
+            }
+            case RETAINED -> {
+                return retained.get(in.readInt());
+            }
+            case BLOCKDATA -> {
+                return new BlockData(readBytes(in));
+            }
+            default -> throw new IOException("invalid spill value tag: " + tag);
+        }
+    }
+}
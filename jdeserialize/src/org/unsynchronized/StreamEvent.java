@@ -0,0 +1,120 @@
+package org.unsynchronized;
+
+/**
+ * <p>
+ * Kinds of events reported by StreamEventReader.next().  Each event corresponds to a
+ * production of the Object Serialization Stream Protocol grammar; see the accessors of
+ * StreamEventReader for the data that is available for each kind.
+ * </p>
+ *
+ * <p>
+ * Container events are always balanced: START_OBJECT/END_OBJECT,
+ * START_ARRAY/END_ARRAY, START_ANNOTATIONS/END_ANNOTATIONS and
+ * START_EXCEPTION/END_EXCEPTION.  The one exception is a serialized exception: once
+ * END_EXCEPTION is reported, every object and array that was being read when the
+ * exception was written is abandoned without an end event, just like the stream writer
+ * abandoned them.
+ * </p>
+ */
+public enum StreamEvent {
+    /**
+     * A new instance (TC_OBJECT); its class description and handle are available.
+     */
+    START_OBJECT,
+
+    /**
+     * All field data and annotations of the current instance have been read.
+     */
+    END_OBJECT,
+
+    /**
+     * A new array (TC_ARRAY); its class description, handle and length are available.
+     */
+    START_ARRAY,
+
+    /**
+     * All elements of the current array have been read.
+     */
+    END_ARRAY,
+
+    /**
+     * A field of the current instance.  For primitive fields, the value is available
+     * immediately; for reference fields, the events that follow describe the value.
+     */
+    FIELD,
+
+    /**
+     * An element of the current array.  For primitive arrays, the value is available
+     * immediately; for reference arrays, the events that follow describe the value.
+     */
+    ARRAY_ELEMENT,
+
+    /**
+     * Start of a class annotation, object annotation (data written by writeObject())
+     * or externalizable data block.  Content events follow until END_ANNOTATIONS.
+     */
+    START_ANNOTATIONS,
+
+    /**
+     * End of the current annotation block (TC_ENDBLOCKDATA).
+     */
+    END_ANNOTATIONS,
+
+    /**
+     * A new string (TC_STRING or TC_LONGSTRING).
+     */
+    STRING,
+
+    /**
+     * A new enum constant (TC_ENUM).
+     */
+    ENUM,
+
+    /**
+     * A new Class object (TC_CLASS).
+     */
+    CLASS,
+
+    /**
+     * A new class description (TC_CLASSDESC or TC_PROXYCLASSDESC) has been completely
+     * read, including its annotations and superclass description.
+     */
+    CLASSDESC,
+
+    /**
+     * A reference to a previously-read object (TC_REFERENCE).
+     */
+    REFERENCE,
+
+    /**
+     * A null reference (TC_NULL).
+     */
+    NULL,
+
+    /**
+     * A block of opaque data (TC_BLOCKDATA or TC_BLOCKDATALONG), or a chunk of a long
+     * one; see StreamEventReader.getBlockData().
+     */
+    BLOCKDATA,
+
+    /**
+     * An exception thrown during serialization (TC_EXCEPTION).  The events of the
+     * exception object follow.
+     */
+    START_EXCEPTION,
+
+    /**
+     * The exception object has been read; the handle table has been reset.
+     */
+    END_EXCEPTION,
+
+    /**
+     * The handle table was reset (TC_RESET).
+     */
+    RESET,
+
+    /**
+     * The end of the stream was reached.
+     */
+    END_STREAM
+}
@@ -0,0 +1,819 @@
+package org.unsynchronized;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * A pull-style (StAX-like) reader for serialized streams.  Instead of building the
+ * complete list of content and every handle map like JDeserialize.run() does, each call
+ * to next() reads just enough of the stream to report the next event of the grammar;
+ * see StreamEvent for the kinds of events.  Nothing but class descriptions (and the
+ * strings they refer to) is retained between events, so streams of arbitrary size can be
+ * scanned in constant memory, and the caller may stop at any point.
+ * </p>
+ *
+ * <p>
+ * The reader follows the same grammar as JDeserialize.readContent() and
+ * JDeserialize.readClassData(), but it keeps its own explicit stack of partially-read
+ * objects instead of recursing, so the nesting depth of the stream isn't limited by the
+ * native stack.
+ * </p>
+ *
+ * <p>
+ * A typical loop looks like this:
+ * </p>
+ *
+ * <pre>
+ *     try (StreamEventReader reader = new StreamEventReader(in)) {
+ *         StreamEvent event;
+ *         while ((event = reader.next()) != StreamEvent.END_STREAM) {
+ *             if (event == StreamEvent.START_OBJECT
+ *                     &amp;&amp; !reader.getClassDescriptor().name.startsWith("com.example.")) {
+ *                 reader.skipChildren();
+ *             }
+ *         }
+ *     }
+ * </pre>
+ *
+ * <p>
+ * <b>Note</b>: since plain strings aren't retained, the reader can only resolve
+ * TC_REFERENCE entries that point to class descriptions or to strings read as part of a
+ * class description.  References are still reported (with their handle) in every other
+ * case; see getReferencedContent().  A field whose type name refers to a string that
+ * wasn't retained gets no className.
+ * </p>
+ *
+ * <p>
+ * Large data doesn't go through memory in one piece either: block data is reported in
+ * BLOCKDATA events of at most JDeserialize.ARRAY_CHUNK_SIZE bytes, and strings longer
+ * than that are kept in a Payload in a temporary file, which is deleted by close().
+ * </p>
+ */
+public class StreamEventReader implements Closeable {
+    private static final int TOP = 0;
+    private static final int OBJECT = 1;
+    private static final int ARRAY = 2;
+    private static final int CLASSDESC = 3;
+    private static final int ANNOTATIONS = 4;
+    private static final int EXCEPTION = 5;
+    private static final int CLASS = 6;
+    private static final int ENUM = 7;
+
+    private static final int S_START = 0;
+    private static final int S_CLASSDESC = 1;
+    private static final int S_CLASS_START = 2;
+    private static final int S_FIELDS = 3;
+    private static final int S_FIELD_VALUE = 4;
+    private static final int S_CLASS_DONE = 5;
+    private static final int S_ELEMENTS = 6;
+    private static final int S_ELEMENT_VALUE = 7;
+    private static final int S_ANNOTATIONS = 8;
+    private static final int S_SUPERCLASS = 9;
+    private static final int S_DONE = 10;
+
+    /**
+     * One partially-read production of the grammar.
+     */
+    private static class Frame {
+        final int kind;
+        int state;
+        int handle;
+        ClassDescriptor classDescriptor;
+        ClassDescriptor result;
+        boolean deliver;
+        ClassDescriptor[] hierarchy;
+        int classIndex;
+        int fieldIndex;
+        FieldType valueType;
+        int length;
+        int index;
+
+        Frame(int kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final DataInputStream stream;
+    private final ArrayList<Frame> stack = new ArrayList<>();
+    private final HashMap<Integer, IContent> retained = new HashMap<>();
+    private int currentHandle;
+    private boolean finished;
+
+    private StreamEvent event;
+    private int handle;
+    private ClassDescriptor classDescriptor;
+    private Field field;
+    private int index;
+    private int length;
+    private Object value;
+    private StringObject string;
+    private byte[] blockData;
+    private long blockRemaining;
+    private PayloadStore payloadStore;
+
+    /**
+     * Constructor.  The stream header is read and validated immediately.
+     *
+     * @param inputStream an open InputStream on a serialized stream of data
+     * @throws IOException if the header can't be read or isn't valid
+     */
+    public StreamEventReader(InputStream inputStream) throws IOException {
+        this.stream = new DataInputStream(inputStream);
+        short magic = stream.readShort();
+        if (magic != ObjectStreamConstants.STREAM_MAGIC) {
+            throw new ValidityException("file magic mismatch!  expected " + ObjectStreamConstants.STREAM_MAGIC + ", got " + magic);
+        }
+        short streamVersion = stream.readShort();
+        if (streamVersion != ObjectStreamConstants.STREAM_VERSION) {
+            throw new ValidityException("file version mismatch!  expected " + ObjectStreamConstants.STREAM_VERSION + ", got " + streamVersion);
+        }
+        resetHandles();
+        stack.add(new Frame(TOP));
+    }
+
+    /**
+     * Reads the stream up to the next event.  Once the end of the stream has been
+     * reached, every further call returns StreamEvent.END_STREAM.
+     *
+     * @return the kind of the event that was read
+     * @throws IOException when a validity or I/O error occurs while reading
+     */
+    public StreamEvent next() throws IOException {
+        handle = 0;
+        classDescriptor = null;
+        field = null;
+        index = 0;
+        length = 0;
+        value = null;
+        string = null;
+        blockData = null;
+        if (blockRemaining > 0) {
+            event = nextBlockData();
+            return event;
+        }
+        while (true) {
+            StreamEvent e;
+            if (finished) {
+                e = StreamEvent.END_STREAM;
+            } else {
+                Frame f = stack.get(stack.size() - 1);
+                e = switch (f.kind) {
+                    case TOP -> nextTop();
+                    case OBJECT -> nextObject(f);
+                    case ARRAY -> nextArray(f);
+                    case CLASSDESC -> nextClassDesc(f);
+                    case ANNOTATIONS -> nextAnnotation();
+                    case EXCEPTION -> nextException(f);
+                    case CLASS -> nextClass(f);
+                    case ENUM -> nextEnum(f);
+                    default -> throw new IllegalStateException("unknown frame kind " + f.kind);
+                };
+            }
+            if (e != null) {
+                event = e;
+                return e;
+            }
+        }
+    }
+
+    /**
+     * Skips everything up to and including the end event that matches the current
+     * START_OBJECT, START_ARRAY, START_ANNOTATIONS or START_EXCEPTION event.  For any
+     * other event, this does nothing.  After the call, the current event is the matching
+     * end event (or END_STREAM, if the stream ended prematurely).
+     *
+     * @throws IOException when a validity or I/O error occurs while reading
+     */
+    public void skipChildren() throws IOException {
+        if (event != StreamEvent.START_OBJECT && event != StreamEvent.START_ARRAY
+                && event != StreamEvent.START_ANNOTATIONS && event != StreamEvent.START_EXCEPTION) {
+            return;
+        }
+        int depth = stack.size();
+        while (stack.size() >= depth && event != StreamEvent.END_STREAM) {
+            next();
+        }
+    }
+
+    /**
+     * @return the kind of the current event, or null if next() hasn't been called yet
+     */
+    public StreamEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Gets the nesting depth of the current position; top-level content is at depth 0.
+     *
+     * @return the number of enclosing objects, arrays, annotations, class descriptions
+     * and exceptions
+     */
+    public int getDepth() {
+        return stack.size() - 1;
+    }
+
+    /**
+     * Gets the handle of the current event: the new handle for START_OBJECT,
+     * START_ARRAY, STRING, ENUM, CLASS and CLASSDESC; the referenced handle for
+     * REFERENCE; the handle of the enclosing object or array for FIELD, ARRAY_ELEMENT,
+     * END_OBJECT and END_ARRAY.
+     *
+     * @return the handle, or 0 if the event has none
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * Gets the class description of the current event: the type of the object or array
+     * for START_OBJECT, END_OBJECT and START_ARRAY; the class holding the field for
+     * FIELD; the annotated class for START_ANNOTATIONS; the described class for CLASS,
+     * ENUM and CLASSDESC.
+     *
+     * @return the class description, or null if the event has none
+     */
+    public ClassDescriptor getClassDescriptor() {
+        return classDescriptor;
+    }
+
+    /**
+     * @return the field of the current FIELD event, or null for other events
+     */
+    public Field getField() {
+        return field;
+    }
+
+    /**
+     * @return the index of the current ARRAY_ELEMENT event
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the length of the array for START_ARRAY, or the number of bytes for
+     * BLOCKDATA
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the value of a primitive field or array element.  Primitive values are
+     * stored using their corresponding objects, just like in ObjectList.
+     *
+     * @return the value for FIELD and ARRAY_ELEMENT events of primitive type, or null if
+     * the value is a reference (in which case the following events describe it)
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the string of the current STRING event, or the constant name of the current
+     * ENUM event.  For ENUM events, this is null if the name was written as a reference
+     * to a string that wasn't retained.  Strings of more than
+     * JDeserialize.ARRAY_CHUNK_SIZE bytes are kept in a payload, which can be read until
+     * the reader is closed.
+     *
+     * @return the string object, or null
+     */
+    public StringObject getString() {
+        return string;
+    }
+
+    /**
+     * Gets the data of the current BLOCKDATA event.  A TC_BLOCKDATALONG of more than
+     * JDeserialize.ARRAY_CHUNK_SIZE bytes is reported as several BLOCKDATA events in a
+     * row; since block data is a plain sequence of bytes, that's the same as if it had
+     * been written as several blocks.
+     *
+     * @return the data, or null for other events
+     */
+    public byte[] getBlockData() {
+        return blockData;
+    }
+
+    /**
+     * Gets the object that a REFERENCE event points to, if the reader retained it.  Only
+     * class descriptions and strings read as part of class descriptions are retained.
+     *
+     * @return the referenced content, or null if it isn't available
+     */
+    public IContent getReferencedContent() {
+        if (event != StreamEvent.REFERENCE) {
+            return null;
+        }
+        return retained.get(handle);
+    }
+
+    /**
+     * Closes the stream, and deletes the payloads of long strings.
+     *
+     * @throws IOException if the stream can't be closed
+     */
+    public void close() throws IOException {
+        try {
+            stream.close();
+        } finally {
+            if (payloadStore != null) {
+                payloadStore.close();
+            }
+        }
+    }
+
+    private int newHandle() {
+        return currentHandle++;
+    }
+
+    private void resetHandles() {
+        retained.clear();
+        currentHandle = ObjectStreamConstants.baseWireHandle;
+    }
+
+    private Frame push(int kind) {
+        Frame f = new Frame(kind);
+        stack.add(f);
+        return f;
+    }
+
+    private Frame pop() {
+        return stack.remove(stack.size() - 1);
+    }
+
+    private StreamEvent nextTop() throws IOException {
+        byte tc;
+        try {
+            tc = stream.readByte();
+        } catch (EOFException ignored) {
+            finished = true;
+            return StreamEvent.END_STREAM;
+        }
+        if (tc == ObjectStreamConstants.TC_RESET) {
+            resetHandles();
+            return StreamEvent.RESET;
+        }
+        return beginContent(tc, true);
+    }
+
+    private StreamEvent nextAnnotation() throws IOException {
+        byte tc = stream.readByte();
+        if (tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+            pop();
+            return StreamEvent.END_ANNOTATIONS;
+        }
+        if (tc == ObjectStreamConstants.TC_RESET) {
+            resetHandles();
+            return StreamEvent.RESET;
+        }
+        return beginContent(tc, true);
+    }
+
+    /**
+     * Starts reading the content introduced by the given typecode.  Simple content is
+     * read completely and reported right away; compound content pushes a frame, and null
+     * is returned so that next() continues with that frame.
+     */
+    private StreamEvent beginContent(byte tc, boolean isBlockData) throws IOException {
+        switch (tc) {
+            case ObjectStreamConstants.TC_OBJECT:
+                push(OBJECT);
+                return null;
+            case ObjectStreamConstants.TC_ARRAY:
+                push(ARRAY);
+                return null;
+            case ObjectStreamConstants.TC_CLASS:
+                push(CLASS);
+                return null;
+            case ObjectStreamConstants.TC_ENUM:
+                push(ENUM);
+                return null;
+            case ObjectStreamConstants.TC_CLASSDESC:
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+                beginClassDesc(tc, false);
+                return null;
+            case ObjectStreamConstants.TC_STRING:
+            case ObjectStreamConstants.TC_LONGSTRING:
+                string = readNewString(tc, false);
+                handle = string.handle;
+                return StreamEvent.STRING;
+            case ObjectStreamConstants.TC_REFERENCE:
+                handle = readHandle();
+                return StreamEvent.REFERENCE;
+            case ObjectStreamConstants.TC_NULL:
+                return StreamEvent.NULL;
+            case ObjectStreamConstants.TC_EXCEPTION:
+                resetHandles();
+                push(EXCEPTION);
+                return StreamEvent.START_EXCEPTION;
+            case ObjectStreamConstants.TC_BLOCKDATA:
+            case ObjectStreamConstants.TC_BLOCKDATALONG:
+                if (!isBlockData) {
+                    throw new IOException("got a isBlockData TC_*, but not allowed here: " + JDeserialize.hex(tc));
+                }
+                blockRemaining = readBlockdataSize(tc);
+                return nextBlockData();
+            default:
+                throw new IOException("unknown content tc byte in stream: " + JDeserialize.hex(tc));
+        }
+    }
+
+    /**
+     * Starts reading the value of a reference field or array element.
+     */
+    private StreamEvent beginValue(FieldType type) throws IOException {
+        byte tc = stream.readByte();
+        if (type == FieldType.ARRAY && tc != ObjectStreamConstants.TC_ARRAY
+                && tc != ObjectStreamConstants.TC_NULL && tc != ObjectStreamConstants.TC_REFERENCE) {
+            throw new IOException("array type listed, but typecode is not TC_ARRAY: " + JDeserialize.hex(tc));
+        }
+        return beginContent(tc, false);
+    }
+
+    /**
+     * Reads the class description of frame f.  If it's available right away (null or a
+     * reference), it's stored in f.result and true is returned; otherwise a CLASSDESC
+     * frame is pushed, which will store its result in f.result when it's done.
+     */
+    private boolean requestClassDesc(Frame f) throws IOException {
+        byte tc = stream.readByte();
+        switch (tc) {
+            case ObjectStreamConstants.TC_NULL:
+                f.result = null;
+                return true;
+            case ObjectStreamConstants.TC_REFERENCE:
+                IContent c = retained.get(readHandle());
+                if (!(c instanceof ClassDescriptor)) {
+                    throw new IOException("referenced object not a class description!");
+                }
+                f.result = (ClassDescriptor) c;
+                return true;
+            case ObjectStreamConstants.TC_CLASSDESC:
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+                beginClassDesc(tc, true);
+                return false;
+            default:
+                throw new ValidityException("expected a valid class description starter got " + JDeserialize.hex(tc));
+        }
+    }
+
+    private void beginClassDesc(byte tc, boolean deliver) throws IOException {
+        ClassDescriptor cd;
+        int h;
+        if (tc == ObjectStreamConstants.TC_CLASSDESC) {
+            String name = stream.readUTF();
+            long serialVersionUID = stream.readLong();
+            h = newHandle();
+            cd = ClassDescriptor.readClassDesc(stream, name, serialVersionUID, () -> readNewString(stream.readByte(), true));
+        } else {
+            h = newHandle();
+            cd = ClassDescriptor.readProxyClassDesc(stream);
+        }
+        cd.handle = h;
+        cd.annotations = new ArrayList<>();
+        Frame f = push(CLASSDESC);
+        f.classDescriptor = cd;
+        f.handle = h;
+        f.deliver = deliver;
+        f.state = S_ANNOTATIONS;
+    }
+
+    @SuppressWarnings("fallthrough")
+    private StreamEvent nextClassDesc(Frame f) throws IOException {
+        switch (f.state) {
+            case S_ANNOTATIONS:
+                f.state = S_SUPERCLASS;
+                push(ANNOTATIONS);
+                classDescriptor = f.classDescriptor;
+                return StreamEvent.START_ANNOTATIONS;
+            case S_SUPERCLASS:
+                f.state = S_DONE;
+                if (!requestClassDesc(f)) {
+                    return null;
+                }
+                // fall through
+            case S_DONE:
+                ClassDescriptor cd = f.classDescriptor;
+                cd.superClass = f.result;
+                if (retained.containsKey(f.handle)) {
+                    throw new IOException("trying to reset handle " + JDeserialize.hex(f.handle));
+                }
+                retained.put(f.handle, cd);
+                pop();
+                if (f.deliver) {
+                    stack.get(stack.size() - 1).result = cd;
+                }
+                handle = f.handle;
+                classDescriptor = cd;
+                return StreamEvent.CLASSDESC;
+            default:
+                throw new IllegalStateException("bad classdesc state " + f.state);
+        }
+    }
+
+    @SuppressWarnings("fallthrough")
+    private StreamEvent nextObject(Frame f) throws IOException {
+        switch (f.state) {
+            case S_START:
+                f.state = S_CLASSDESC;
+                if (!requestClassDesc(f)) {
+                    return null;
+                }
+                // fall through
+            case S_CLASSDESC: {
+                ClassDescriptor cd = f.result;
+                if (cd == null) {
+                    throw new ValidityException("object classdesc can't be null!");
+                }
+                ArrayList<ClassDescriptor> classes = new ArrayList<>();
+                cd.getHierarchy(classes);
+                f.classDescriptor = cd;
+                f.hierarchy = classes.toArray(new ClassDescriptor[0]);
+                f.handle = newHandle();
+                f.state = S_CLASS_START;
+                handle = f.handle;
+                classDescriptor = cd;
+                return StreamEvent.START_OBJECT;
+            }
+            case S_CLASS_START: {
+                if (f.classIndex == f.hierarchy.length) {
+                    pop();
+                    handle = f.handle;
+                    classDescriptor = f.classDescriptor;
+                    return StreamEvent.END_OBJECT;
+                }
+                ClassDescriptor cd = f.hierarchy[f.classIndex];
+                if ((cd.descriptorFlags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
+                    if ((cd.descriptorFlags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+                        throw new IOException("SC_EXTERNALIZABLE & SC_SERIALIZABLE encountered");
+                    }
+                    f.fieldIndex = 0;
+                    f.state = S_FIELDS;
+                } else if ((cd.descriptorFlags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+                    if ((cd.descriptorFlags & ObjectStreamConstants.SC_BLOCK_DATA) != 0) {
+                        throw new EOFException("hit externalizable with nonzero SC_BLOCK_DATA; can't interpret data");
+                    }
+                    f.state = S_CLASS_DONE;
+                    push(ANNOTATIONS);
+                    classDescriptor = cd;
+                    return StreamEvent.START_ANNOTATIONS;
+                } else {
+                    f.classIndex++;
+                }
+                return null;
+            }
+            case S_FIELDS: {
+                ClassDescriptor cd = f.hierarchy[f.classIndex];
+                if (f.fieldIndex == cd.fields.length) {
+                    if ((cd.descriptorFlags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+                        if ((cd.descriptorFlags & ObjectStreamConstants.SC_ENUM) != 0) {
+                            throw new IOException("SC_ENUM & SC_WRITE_METHOD encountered!");
+                        }
+                        f.state = S_CLASS_DONE;
+                        push(ANNOTATIONS);
+                        classDescriptor = cd;
+                        return StreamEvent.START_ANNOTATIONS;
+                    }
+                    f.classIndex++;
+                    f.state = S_CLASS_START;
+                    return null;
+                }
+                Field fld = cd.fields[f.fieldIndex++];
+                if (fld.type == FieldType.OBJECT || fld.type == FieldType.ARRAY) {
+                    f.valueType = fld.type;
+                    f.state = S_FIELD_VALUE;
+                } else {
+                    value = readPrimitive(fld.type);
+                }
+                handle = f.handle;
+                classDescriptor = cd;
+                field = fld;
+                return StreamEvent.FIELD;
+            }
+            case S_FIELD_VALUE:
+                f.state = S_FIELDS;
+                return beginValue(f.valueType);
+            case S_CLASS_DONE:
+                f.classIndex++;
+                f.state = S_CLASS_START;
+                return null;
+            default:
+                throw new IllegalStateException("bad object state " + f.state);
+        }
+    }
+
+    @SuppressWarnings("fallthrough")
+    private StreamEvent nextArray(Frame f) throws IOException {
+        switch (f.state) {
+            case S_START:
+                f.state = S_CLASSDESC;
+                if (!requestClassDesc(f)) {
+                    return null;
+                }
+                // fall through
+            case S_CLASSDESC: {
+                ClassDescriptor cd = f.result;
+                if (cd == null) {
+                    throw new ValidityException("array classdesc can't be null!");
+                }
+                f.handle = newHandle();
+                if (cd.name.length() < 2) {
+                    throw new IOException("invalid name in array classdesc: " + cd.name);
+                }
+                char ch = cd.name.charAt(1);
+                if (ch > 127) {
+                    throw new ValidityException("invalid field type char: " + (int) ch);
+                }
+                f.valueType = FieldType.get((byte) ch);
+                int size = stream.readInt();
+                if (size < 0) {
+                    throw new IOException("invalid array size: " + size);
+                }
+                f.classDescriptor = cd;
+                f.length = size;
+                f.state = S_ELEMENTS;
+                handle = f.handle;
+                classDescriptor = cd;
+                length = size;
+                return StreamEvent.START_ARRAY;
+            }
+            case S_ELEMENTS:
+                handle = f.handle;
+                classDescriptor = f.classDescriptor;
+                if (f.index == f.length) {
+                    pop();
+                    return StreamEvent.END_ARRAY;
+                }
+                index = f.index++;
+                if (f.valueType == FieldType.OBJECT || f.valueType == FieldType.ARRAY) {
+                    f.state = S_ELEMENT_VALUE;
+                } else {
+                    value = readPrimitive(f.valueType);
+                }
+                return StreamEvent.ARRAY_ELEMENT;
+            case S_ELEMENT_VALUE:
+                f.state = S_ELEMENTS;
+                return beginValue(f.valueType);
+            default:
+                throw new IllegalStateException("bad array state " + f.state);
+        }
+    }
+
+    private StreamEvent nextClass(Frame f) throws IOException {
+        if (f.state == S_START) {
+            f.state = S_CLASSDESC;
+            if (!requestClassDesc(f)) {
+                return null;
+            }
+        }
+        if (f.result == null) {
+            throw new ValidityException("class classdesc can't be null!");
+        }
+        pop();
+        handle = newHandle();
+        classDescriptor = f.result;
+        return StreamEvent.CLASS;
+    }
+
+    private StreamEvent nextEnum(Frame f) throws IOException {
+        if (f.state == S_START) {
+            f.state = S_CLASSDESC;
+            if (!requestClassDesc(f)) {
+                return null;
+            }
+        }
+        if (f.result == null) {
+            throw new IOException("enum classdesc can't be null!");
+        }
+        pop();
+        handle = newHandle();
+        classDescriptor = f.result;
+        byte tc = stream.readByte();
+        if (tc == ObjectStreamConstants.TC_REFERENCE) {
+            IContent c = retained.get(readHandle());
+            if (c != null && !(c instanceof StringObject)) {
+                throw new IOException("got reference for a string, but referenced value was something else!");
+            }
+            string = (StringObject) c;
+        } else {
+            string = readNewString(tc, false);
+        }
+        return StreamEvent.ENUM;
+    }
+
+    private StreamEvent nextException(Frame f) throws IOException {
+        if (f.state == S_START) {
+            byte tc = stream.readByte();
+            if (tc == ObjectStreamConstants.TC_RESET) {
+                throw new ValidityException("TC_RESET for object while reading exception: what should we do?");
+            }
+            if (tc == ObjectStreamConstants.TC_NULL) {
+                throw new ValidityException("stream signaled for an exception, but exception object was null!");
+            }
+            if (tc != ObjectStreamConstants.TC_OBJECT && tc != ObjectStreamConstants.TC_REFERENCE) {
+                throw new ValidityException("stream signaled for an exception, but content is not an object!");
+            }
+            f.state = S_DONE;
+            return beginContent(tc, false);
+        }
+        resetHandles();
+        while (stack.size() > 1) {
+            pop();
+        }
+        return StreamEvent.END_EXCEPTION;
+    }
+
+    private int readHandle() throws IOException {
+        int h = stream.readInt();
+        if (h < ObjectStreamConstants.baseWireHandle || h >= currentHandle) {
+            throw new ValidityException("can't find an entry for handle " + JDeserialize.hex(h));
+        }
+        return h;
+    }
+
+    /**
+     * Reads a string, or for a field's type name also a reference to one; null is
+     * returned for references to strings that weren't retained.
+     */
+    private StringObject readNewString(byte tc, boolean retain) throws IOException {
+        long length;
+        if (tc == ObjectStreamConstants.TC_REFERENCE) {
+            int h = readHandle();
+            IContent content = retained.get(h);
+            if (content == null) {
+                return null;
+            }
+            if (!(content instanceof StringObject)) {
+                throw new IOException("got reference for a string, but referenced value was something else!");
+            }
+            return (StringObject) content;
+        }
+        int h = newHandle();
+        if (tc == ObjectStreamConstants.TC_STRING) {
+            length = stream.readUnsignedShort();
+        } else if (tc == ObjectStreamConstants.TC_LONGSTRING) {
+            length = stream.readLong();
+            if (length < 0) {
+                throw new IOException("invalid long string length: " + length);
+            }
+        } else if (tc == ObjectStreamConstants.TC_NULL) {
+            throw new ValidityException("stream signaled TC_NULL when string type expected!");
+        } else {
+            throw new IOException("invalid tc byte in string: " + JDeserialize.hex(tc));
+        }
+        StringObject sobj;
+        if (length > JDeserialize.ARRAY_CHUNK_SIZE) {
+            if (payloadStore == null) {
+                payloadStore = new PayloadStore(null);
+            }
+            sobj = new StringObject(h, payloadStore.append(stream, length));
+        } else {
+            sobj = new StringObject(h, JDeserialize.readBytes(stream, (int) length));
+        }
+        if (retain) {
+            retained.put(h, sobj);
+        }
+        return sobj;
+    }
+
+    private int readBlockdataSize(byte tc) throws IOException {
+        int size;
+        if (tc == ObjectStreamConstants.TC_BLOCKDATA) {
+            size = stream.readUnsignedByte();
+        } else {
+            size = stream.readInt();
+        }
+        if (size < 0) {
+            throw new IOException("invalid value for blockdata size: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Reads the next chunk of the current block data.
+     */
+    private StreamEvent nextBlockData() throws IOException {
+        int n = (int) Math.min(blockRemaining, JDeserialize.ARRAY_CHUNK_SIZE);
+        blockData = new byte[n];
+        stream.readFully(blockData);
+        blockRemaining -= n;
+        length = n;
+        return StreamEvent.BLOCKDATA;
+    }
+
+    private Object readPrimitive(FieldType fieldType) throws IOException {
+        return switch (fieldType) {
+            case BYTE -> stream.readByte();
+            case CHAR -> stream.readChar();
+            case DOUBLE -> stream.readDouble();
+            case FLOAT -> stream.readFloat();
+            case INTEGER -> stream.readInt();
+            case LONG -> stream.readLong();
+            case SHORT -> stream.readShort();
+            case BOOLEAN -> stream.readBoolean();
+            default -> throw new IOException("can't process type: " + fieldType);
+        };
+    }
+}
@@ -0,0 +1,212 @@
+package org.unsynchronized;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An index of the top-level items of a serialized stream, built by a single StreamScanner
+ * pass.  For every item, it holds the offset, typecode, range of assigned handles and
+ * class description; these are kept in parallel primitive arrays, so the index costs
+ * about 30 bytes per item plus the class descriptions themselves.  An index can also be
+ * read back from an IndexFile, without the class descriptions.
+ * </p>
+ *
+ * <p>
+ * The index makes it possible to parse a single item without parsing the whole stream
+ * before it (see JDeserialize.readItem()), to estimate how expensive parsing a range of
+ * items will be, and to find the points where the stream can be split between threads.
+ * </p>
+ */
+public class StreamIndex {
+    /**
+     * The cost of a handle, in bytes, for estimateCost().  Every handle is a content
+     * object that the parser allocates, looks up and validates, which takes about as long
+     * as copying this many bytes of primitive data.
+     */
+    public static final long HANDLE_COST = 64;
+
+    private long[] offsets;
+    private byte[] typecodes;
+    private int[] firstHandles;
+    private int[] endHandles;
+    private ClassDescriptor[] classes;
+    private String[] classNames;
+    private int size;
+    private long endOffset;
+
+    StreamIndex() {
+        offsets = new long[64];
+        typecodes = new byte[64];
+        firstHandles = new int[64];
+        endHandles = new int[64];
+        classes = new ClassDescriptor[64];
+        classNames = new String[64];
+    }
+
+    /**
+     * Scans a stream and indexes its top-level items.
+     *
+     * @param input the input, positioned at the start of the stream (at the header)
+     * @return the index
+     * @throws IOException if the stream can't be read, or isn't valid; see
+     * StreamScanner for the limitations of the scan
+     */
+    public static StreamIndex build(ISerialInput input) throws IOException {
+        StreamIndex index = new StreamIndex();
+        StreamScanner scanner = new StreamScanner(input);
+        while (scanner.next()) {
+            index.add(scanner);
+        }
+        index.setEndOffset(input.position());
+        return index;
+    }
+
+    /**
+     * Adds the current item of a scanner.
+     */
+    void add(StreamScanner scanner) {
+        ClassDescriptor cd = scanner.getClassDescriptor();
+        add(scanner.getOffset(), scanner.getTypecode(), scanner.getFirstHandle(), scanner.getEndHandle(),
+                cd, cd == null ? null : cd.name);
+    }
+
+    void add(long offset, byte tc, int firstHandle, int endHandle, ClassDescriptor cd, String className) {
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            typecodes = Arrays.copyOf(typecodes, capacity);
+            firstHandles = Arrays.copyOf(firstHandles, capacity);
+            endHandles = Arrays.copyOf(endHandles, capacity);
+            classes = Arrays.copyOf(classes, capacity);
+            classNames = Arrays.copyOf(classNames, capacity);
+        }
+        offsets[size] = offset;
+        typecodes[size] = tc;
+        firstHandles[size] = firstHandle;
+        endHandles[size] = endHandle;
+        classes[size] = cd;
+        classNames[size] = className;
+        size++;
+    }
+
+    /**
+     * Sets the offset of the end of the stream, after the last item.
+     */
+    void setEndOffset(long endOffset) {
+        this.endOffset = endOffset;
+    }
+
+    /**
+     * @return the number of top-level items, including TC_RESETs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param n the item index, from 0 to size() - 1
+     * @return the input offset of the item's typecode
+     */
+    public long getOffset(int n) {
+        checkIndex(n);
+        return offsets[n];
+    }
+
+    /**
+     * @param n the item index
+     * @return the input offset just after the item
+     */
+    public long getEndOffset(int n) {
+        checkIndex(n);
+        return n + 1 < size ? offsets[n + 1] : endOffset;
+    }
+
+    /**
+     * @param n the item index
+     * @return the typecode that starts the item
+     */
+    public byte getTypecode(int n) {
+        checkIndex(n);
+        return typecodes[n];
+    }
+
+    /**
+     * @param n the item index
+     * @return the first handle assigned by the item; see StreamScanner.getFirstHandle()
+     */
+    public int getFirstHandle(int n) {
+        checkIndex(n);
+        return firstHandles[n];
+    }
+
+    /**
+     * @param n the item index
+     * @return the handle after the last one assigned by the item; see
+     * StreamScanner.getEndHandle()
+     */
+    public int getEndHandle(int n) {
+        checkIndex(n);
+        return endHandles[n];
+    }
+
+    /**
+     * @param n the item index
+     * @return the class description of the item, as returned by
+     * StreamScanner.getClassDescriptor(); this is the scanner's copy, without
+     * connections to other content.  Always null for an index read from an IndexFile.
+     */
+    public ClassDescriptor getClassDescriptor(int n) {
+        checkIndex(n);
+        return classes[n];
+    }
+
+    /**
+     * @param n the item index
+     * @return the name of the item's class description, or null if it has none
+     */
+    public String getClassName(int n) {
+        checkIndex(n);
+        return classNames[n];
+    }
+
+    /**
+     * Finds the first item of the segment that contains an item: the last item before
+     * it that started with an empty handle table (after a TC_RESET or a serialized
+     * exception, or at the start of the stream), or a top-level exception, which resets
+     * the handle table itself.  An item can only refer to handles assigned in its own
+     * segment, so parsing can start there.
+     *
+     * @param n the item index
+     * @return the index of the first item of the segment
+     */
+    public int getSegmentStart(int n) {
+        checkIndex(n);
+        // the handle table is empty exactly when an item starts at the base handle
+        while (n > 0 && firstHandles[n] != ObjectStreamConstants.baseWireHandle
+                && typecodes[n] != ObjectStreamConstants.TC_EXCEPTION) {
+            n--;
+        }
+        return n;
+    }
+
+    /**
+     * Estimates the cost of parsing an item, in byte equivalents: the size of the item
+     * plus HANDLE_COST for every handle it assigns (not counting handles that an
+     * exception or a nested TC_RESET discarded again).  This is only meant for comparing
+     * items and ranges with each other, e.g. to divide work between threads.
+     *
+     * @param n the item index
+     * @return the estimated cost
+     */
+    public long estimateCost(int n) {
+        return getEndOffset(n) - offsets[n] + HANDLE_COST * Math.max(0, endHandles[n] - firstHandles[n]);
+    }
+
+    private void checkIndex(int n) {
+        if (n < 0 || n >= size) {
+            throw new IndexOutOfBoundsException("item " + n + " out of " + size);
+        }
+    }
+}
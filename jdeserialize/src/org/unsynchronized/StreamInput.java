@@ -0,0 +1,467 @@
+package org.unsynchronized;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A buffered ISerialInput that reads from an InputStream.  Data is read from the stream
+ * in large blocks, and primitives are decoded straight from the buffer; none of the
+ * methods are synchronized, since an input belongs to a single parser.
+ * </p>
+ *
+ * <p>
+ * When the stream is a FileInputStream on a seekable file, getBytes() re-reads ranges
+ * that are no longer buffered from the file, so nothing is copied unless it is asked
+ * for.  Other streams can't be re-read; for those, retainFrom() turns on recording, and
+ * the bytes that leave the buffer from that offset on are kept until the next call.
+ * </p>
+ *
+ * <p>
+ * Bytes that the parser copies into a PayloadStore (see appendTo()) are left out of the
+ * recording, so payloads don't go through memory on these streams either; getBytes()
+ * reads them back from the store.  Everything else of the item being recorded is kept in
+ * memory, so on a non-seekable stream an item without payloads costs its full size,
+ * and getBytes() over a range with payloads in it still needs that range to fit into
+ * an array.
+ * </p>
+ */
+public class StreamInput implements ISerialInput {
+    /**
+     * The default size of the read buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final InputStream inputStream;
+    private final FileChannel channel;
+    private final long base;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * The stream offset of buf[0].
+     */
+    private long bufStart;
+
+    private boolean recording;
+    private long recordStart;
+    private byte[] recorded = new byte[0];
+    private int recordedLength;
+
+    /**
+     * The stream offset from which bytes are recorded again, after the last payload.
+     */
+    private long recordResume;
+
+    /**
+     * The payloads within the recorded range, in stream order; their bytes aren't in
+     * recorded.
+     */
+    private final ArrayList<Hole> holes = new ArrayList<>();
+
+    private static final class Hole {
+        final long offset;
+        final Payload payload;
+
+        Hole(long offset, Payload payload) {
+            this.offset = offset;
+            this.payload = payload;
+        }
+
+        long end() {
+            return offset + payload.length();
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param inputStream the stream to read from; reading starts at its current position
+     */
+    public StreamInput(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param inputStream the stream to read from; reading starts at its current position
+     * @param bufferSize the size of the read buffer; at least 8
+     */
+    public StreamInput(InputStream inputStream, int bufferSize) {
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException("buffer size too small: " + bufferSize);
+        }
+        FileChannel fileChannel = null;
+        long channelBase = 0;
+        if (inputStream instanceof FileInputStream fis) {
+            try {
+                fileChannel = fis.getChannel();
+                channelBase = fileChannel.position();
+            } catch (IOException ignored) {
+                // pipes and other unseekable files can't be re-read
+                fileChannel = null;
+            }
+        }
+        this.inputStream = inputStream;
+        this.channel = fileChannel;
+        this.base = channelBase;
+        this.buf = new byte[(int) Math.max(8, Math.min(bufferSize, knownLength(inputStream)))];
+    }
+
+    /**
+     * Returns the number of bytes left in streams whose length is known up front, so
+     * that small inputs don't pay for a full-sized buffer.
+     */
+    private long knownLength(InputStream inputStream) {
+        try {
+            if (channel != null) {
+                return channel.size() - base;
+            } else if (inputStream instanceof ByteArrayInputStream) {
+                return inputStream.available();
+            }
+        } catch (IOException ignored) {
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public long position() {
+        return bufStart + pos;
+    }
+
+    public long length() {
+        if (channel != null) {
+            try {
+                return channel.size() - base;
+            } catch (IOException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    public void retainFrom(long start) {
+        if (channel != null) {
+            return;
+        }
+        if (start != position()) {
+            throw new IllegalArgumentException("can only retain from the current position " + position() + ", not " + start);
+        }
+        recording = true;
+        recordStart = start;
+        recordResume = start;
+        recordedLength = 0;
+        holes.clear();
+    }
+
+    public byte[] getBytes(long start, long end) throws IOException {
+        if (start < 0 || end < start || end > position() || end - start > Integer.MAX_VALUE) {
+            throw new IOException("invalid range " + start + "-" + end);
+        }
+        if (start >= bufStart) {
+            return Arrays.copyOfRange(buf, (int) (start - bufStart), (int) (end - bufStart));
+        }
+        if (channel != null) {
+            ByteBuffer bb = ByteBuffer.allocate((int) (end - start));
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, base + start + bb.position()) < 0) {
+                    throw new EOFException("file truncated while re-reading " + start + "-" + end);
+                }
+            }
+            return bb.array();
+        }
+        if (!recording || start < recordStart) {
+            throw new IOException("range " + start + "-" + end + " is no longer available");
+        }
+        byte[] data = new byte[(int) (end - start)];
+        long offset = recordStart;
+        int index = 0;
+        for (Hole hole : holes) {
+            copyRecorded(data, start, end, offset, hole.offset, index);
+            index += (int) (hole.offset - offset);
+            long from = Math.max(start, hole.offset);
+            long to = Math.min(end, hole.end());
+            if (from < to) {
+                byte[] bytes = hole.payload.getBytes(from - hole.offset, to - hole.offset);
+                System.arraycopy(bytes, 0, data, (int) (from - start), bytes.length);
+            }
+            offset = hole.end();
+        }
+        copyRecorded(data, start, end, offset, bufStart, index);
+        long from = Math.max(start, bufStart);
+        System.arraycopy(buf, (int) (from - bufStart), data, (int) (from - start), (int) (end - from));
+        return data;
+    }
+
+    /**
+     * Copies the part of the recorded run from runStart to runEnd, which starts at the
+     * given index of recorded, that lies between start and end into data.
+     */
+    private void copyRecorded(byte[] data, long start, long end, long runStart, long runEnd, int index) {
+        long from = Math.max(start, runStart);
+        long to = Math.min(end, runEnd);
+        if (from < to) {
+            System.arraycopy(recorded, index + (int) (from - runStart), data, (int) (from - start), (int) (to - from));
+        }
+    }
+
+    /**
+     * Copies the next bytes of the stream into a payload store.  If the input is
+     * recording (see retainFrom()), the bytes are left out of the recording and kept as
+     * a hole that getBytes() fills from the payload.
+     *
+     * @param store the store
+     * @param count the number of bytes
+     * @return the payload of the copied bytes
+     * @throws IOException if the bytes can't be read or written
+     */
+    Payload appendTo(PayloadStore store, long count) throws IOException {
+        if (!recording) {
+            return store.append(this, count);
+        }
+        // record what was read up to here, as fill() would, and stop until the payload ends
+        record(0, pos);
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        bufStart += pos;
+        limit -= pos;
+        pos = 0;
+        long start = position();
+        recording = false;
+        Payload payload;
+        try {
+            payload = store.append(this, count);
+        } finally {
+            recording = true;
+        }
+        recordResume = start + count;
+        holes.add(new Hole(start, payload));
+        return payload;
+    }
+
+    /**
+     * Always false; even seekable files can't be re-read once the stream is closed.
+     */
+    public boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Appends the given part of the buffer to the recorded data, if it lies after
+     * the recording start.
+     */
+    private void record(int from, int to) {
+        from = (int) Math.max(from, recordResume - bufStart);
+        if (from < to) {
+            record(buf, from, to - from);
+        }
+    }
+
+    private void record(byte[] b, int off, int len) {
+        if (recorded.length - recordedLength < len) {
+            recorded = Arrays.copyOf(recorded, Math.max(recorded.length * 2, recordedLength + len));
+        }
+        System.arraycopy(b, off, recorded, recordedLength, len);
+        recordedLength += len;
+    }
+
+    /**
+     * Discards the consumed part of the buffer and reads until at least n bytes are
+     * available.
+     *
+     * @throws EOFException if the stream ends first
+     */
+    private void fill(int n) throws IOException {
+        if (recording) {
+            record(0, pos);
+        }
+        int remaining = limit - pos;
+        System.arraycopy(buf, pos, buf, 0, remaining);
+        bufStart += pos;
+        pos = 0;
+        limit = remaining;
+        while (limit < n) {
+            int r = inputStream.read(buf, limit, buf.length - limit);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            limit += r;
+        }
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (len < 0 || off < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len >= buf.length) {
+            // drain the buffer, then read the rest without copying it through the buffer
+            int n = limit - pos;
+            System.arraycopy(buf, pos, b, off, n);
+            pos = limit;
+            if (recording) {
+                record(0, pos);
+            }
+            bufStart += pos;
+            pos = limit = 0;
+            off += n;
+            len -= n;
+            while (len > 0) {
+                int r = inputStream.read(b, off, len);
+                if (r < 0) {
+                    throw new EOFException();
+                }
+                if (recording) {
+                    record(b, off, r);
+                }
+                bufStart += r;
+                off += r;
+                len -= r;
+            }
+            return;
+        }
+        while (len > 0) {
+            if (pos == limit) {
+                fill(1);
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = 0;
+        while (skipped < n) {
+            if (pos == limit) {
+                try {
+                    fill(1);
+                } catch (EOFException eoe) {
+                    break;
+                }
+            }
+            int k = Math.min(n - skipped, limit - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        if (pos == limit) {
+            fill(1);
+        }
+        return buf[pos++];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        if (limit - pos < 2) {
+            fill(2);
+        }
+        short s = (short) SHORT.get(buf, pos);
+        pos += 2;
+        return s;
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        if (limit - pos < 4) {
+            fill(4);
+        }
+        int i = (int) INT.get(buf, pos);
+        pos += 4;
+        return i;
+    }
+
+    public long readLong() throws IOException {
+        if (limit - pos < 8) {
+            fill(8);
+        }
+        long l = (long) LONG.get(buf, pos);
+        pos += 8;
+        return l;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos == limit) {
+                try {
+                    fill(1);
+                } catch (EOFException eoe) {
+                    return sb.isEmpty() ? null : sb.toString();
+                }
+            }
+            int c = buf[pos++] & 0xff;
+            if (c == '\n') {
+                return sb.toString();
+            }
+            if (c == '\r') {
+                if ((pos < limit || fillQuietly()) && buf[pos] == '\n') {
+                    pos++;
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+    }
+
+    private boolean fillQuietly() throws IOException {
+        try {
+            fill(1);
+            return true;
+        } catch (EOFException eoe) {
+            return false;
+        }
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
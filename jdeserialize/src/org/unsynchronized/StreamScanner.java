@@ -0,0 +1,505 @@
+package org.unsynchronized;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * A fast structural scanner for serialized streams.  Each call to next() walks over one
+ * top-level item of the stream (the content written by one writeObject() call, or a
+ * TC_RESET) and reports where it starts and what kind of item it is.
+ * </p>
+ *
+ * <p>
+ * The scanner follows the same grammar as JDeserialize, and decodes class data with the
+ * same ClassLayout plans, but it doesn't build any content: primitive data, strings,
+ * primitive arrays and block data are skipped with skipBytes(), and handles are merely
+ * counted.  Only class descriptions and the strings read as part of them are retained,
+ * since the layout of later instances depends on them.  A field's type name may also
+ * refer back to a string that was read elsewhere, which the scanner hasn't kept; such a
+ * field gets no className, which the layout doesn't need.
+ * </p>
+ *
+ * <p>
+ * Besides the offset and typecode, the scanner reports the range of handles that each
+ * item assigned and the class description of the item; StreamIndex collects these for a
+ * whole stream.
+ * </p>
+ */
+public class StreamScanner {
+    private final ISerialInput input;
+    private final HashMap<Integer, IContent> retained = new HashMap<>();
+    private final ArrayList<Frame> stack = new ArrayList<>();
+    private int currentHandle;
+    private long handleCount;
+    private IScanListener listener;
+
+    private long offset;
+    private byte typecode;
+    private int firstHandle;
+    private ClassDescriptor itemClass;
+
+    /**
+     * An object, array or annotation block that is being skipped.
+     */
+    private static final class Frame {
+        long ordinal;
+        ClassLayout layout;
+        int pc;
+        FieldType elementType;
+        int remaining;
+        boolean annotations;
+    }
+
+    /**
+     * Constructor.  Reads and checks the stream header.
+     *
+     * @param input the input, positioned at the start of the stream
+     * @throws IOException if the header can't be read or is invalid
+     */
+    public StreamScanner(ISerialInput input) throws IOException {
+        this.input = input;
+        short magic = input.readShort();
+        if (magic != ObjectStreamConstants.STREAM_MAGIC) {
+            throw new ValidityException("file magic mismatch!  expected " + ObjectStreamConstants.STREAM_MAGIC + ", got " + magic);
+        }
+        short streamVersion = input.readShort();
+        if (streamVersion != ObjectStreamConstants.STREAM_VERSION) {
+            throw new ValidityException("file version mismatch!  expected " + ObjectStreamConstants.STREAM_VERSION + ", got " + streamVersion);
+        }
+        resetHandles();
+    }
+
+    /**
+     * Installs a listener that is told about every handle the scanner assigns, about the
+     * end of its content, and about every reference to it.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setListener(IScanListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Skips over the next top-level item.
+     *
+     * @return false if the end of the stream was reached, true otherwise
+     * @throws IOException if an error occurs while reading, or the item is invalid
+     */
+    public boolean next() throws IOException {
+        offset = input.position();
+        firstHandle = currentHandle;
+        itemClass = null;
+        try {
+            typecode = input.readByte();
+        } catch (EOFException ignored) {
+            return false;
+        }
+        if (typecode == ObjectStreamConstants.TC_RESET) {
+            resetHandles();
+            firstHandle = currentHandle;
+            return true;
+        }
+        try {
+            scanContent(typecode, true);
+        } catch (ExceptionReadException ere) {
+            // everything that was being written when the exception was thrown is abandoned
+            stack.clear();
+        }
+        return true;
+    }
+
+    /**
+     * @return the input offset of the typecode of the current item
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the input offset just after the current item
+     */
+    public long getEndOffset() {
+        return input.position();
+    }
+
+    /**
+     * @return the typecode that starts the current item
+     */
+    public byte getTypecode() {
+        return typecode;
+    }
+
+    /**
+     * @return the first handle assigned by the current item, which is the base handle if
+     * the handle table was empty before it
+     */
+    public int getFirstHandle() {
+        return firstHandle;
+    }
+
+    /**
+     * @return the handle after the last one assigned by the current item, which is the
+     * next handle to be assigned.  After a TC_RESET or a serialized exception, the handle
+     * table is empty, and this is the base handle.
+     */
+    public int getEndHandle() {
+        return currentHandle;
+    }
+
+    /**
+     * @return the class description of the current item: the class of an object (or of
+     * the exception object), array, enum constant or class, or the description itself for
+     * a TC_CLASSDESC; null for other items
+     */
+    public ClassDescriptor getClassDescriptor() {
+        return itemClass;
+    }
+
+    private void resetHandles() {
+        retained.clear();
+        currentHandle = ObjectStreamConstants.baseWireHandle;
+    }
+
+    /**
+     * Assigns the next handle.
+     *
+     * @return the ordinal of the handle, for finished()
+     */
+    private long newHandle(byte tc, long offset, String className) {
+        int h = currentHandle++;
+        if (listener != null) {
+            listener.assigned(h, tc, offset, className);
+        }
+        return handleCount++;
+    }
+
+    /**
+     * Reports that the content of a handle ends at the current position.
+     */
+    private void finished(long ordinal) {
+        if (listener != null) {
+            listener.finished(ordinal, input.position());
+        }
+    }
+
+    /**
+     * Reads the handle of a TC_REFERENCE, whose typecode was just read.
+     */
+    private int readHandle() throws IOException {
+        long offset = input.position() - 1;
+        int h = input.readInt();
+        if (h < ObjectStreamConstants.baseWireHandle || h >= currentHandle) {
+            throw new ValidityException("can't find an entry for handle " + JDeserialize.hex(h));
+        }
+        if (listener != null) {
+            // handle values are consecutive since the last reset
+            listener.referenced(handleCount - (currentHandle - h), offset);
+        }
+        return h;
+    }
+
+    /**
+     * Skips a complete value, including everything nested in it.
+     */
+    private void scanContent(byte tc, boolean isBlockData) throws IOException {
+        int depth = stack.size();
+        startContent(tc, isBlockData);
+        drain(depth);
+    }
+
+    /**
+     * Continues skipping until the stack is back at the given depth.
+     */
+    private void drain(int depth) throws IOException {
+        while (stack.size() > depth) {
+            Frame f = stack.getLast();
+            if (f.layout != null) {
+                stepObject(f);
+            } else if (f.annotations) {
+                stepAnnotations();
+            } else {
+                stepArray(f);
+            }
+        }
+    }
+
+    /**
+     * Starts skipping a value.  Objects, arrays of references and annotation blocks push
+     * a frame; everything else is skipped completely.
+     */
+    private void startContent(byte tc, boolean isBlockData) throws IOException {
+        long start = input.position() - 1;
+        boolean topLevel = stack.isEmpty();
+        switch (tc) {
+            case ObjectStreamConstants.TC_OBJECT -> {
+                ClassDescriptor cd = readClassDesc();
+                if (cd == null) {
+                    throw new ValidityException("object classdesc can't be null!");
+                }
+                if (topLevel) {
+                    itemClass = cd;
+                }
+                Frame f = new Frame();
+                f.ordinal = newHandle(tc, start, cd.name);
+                f.layout = cd.getLayout();
+                stack.add(f);
+            }
+            case ObjectStreamConstants.TC_ARRAY -> {
+                ClassDescriptor cd = readClassDesc();
+                if (cd == null) {
+                    throw new ValidityException("array classdesc can't be null!");
+                }
+                if (topLevel) {
+                    itemClass = cd;
+                }
+                long ordinal = newHandle(tc, start, cd.name);
+                if (cd.name.length() < 2) {
+                    throw new IOException("invalid name in array classdesc: " + cd.name);
+                }
+                char ch = cd.name.charAt(1);
+                if (ch > 127) {
+                    throw new ValidityException("invalid field type char: " + (int) ch);
+                }
+                FieldType type = FieldType.get((byte) ch);
+                int size = input.readInt();
+                if (size < 0) {
+                    throw new IOException("invalid array size: " + size);
+                }
+                if (type.isPrimitive()) {
+                    JDeserialize.skipFully(input, (long) size * type.width());
+                    finished(ordinal);
+                } else {
+                    Frame f = new Frame();
+                    f.ordinal = ordinal;
+                    f.elementType = type;
+                    f.remaining = size;
+                    stack.add(f);
+                }
+            }
+            case ObjectStreamConstants.TC_CLASS -> {
+                ClassDescriptor cd = readClassDesc();
+                if (topLevel) {
+                    itemClass = cd;
+                }
+                finished(newHandle(tc, start, cd == null ? null : cd.name));
+            }
+            case ObjectStreamConstants.TC_ENUM -> {
+                ClassDescriptor cd = readClassDesc();
+                if (cd == null) {
+                    throw new IOException("enum classdesc can't be null!");
+                }
+                if (topLevel) {
+                    itemClass = cd;
+                }
+                long ordinal = newHandle(tc, start, cd.name);
+                long stringStart = input.position();
+                byte stc = input.readByte();
+                if (stc == ObjectStreamConstants.TC_REFERENCE) {
+                    readHandle();
+                } else {
+                    skipString(stc, stringStart);
+                }
+                finished(ordinal);
+            }
+            case ObjectStreamConstants.TC_CLASSDESC, ObjectStreamConstants.TC_PROXYCLASSDESC -> {
+                ClassDescriptor cd = readNewClassDesc(tc, start);
+                if (topLevel) {
+                    itemClass = cd;
+                }
+            }
+            case ObjectStreamConstants.TC_STRING, ObjectStreamConstants.TC_LONGSTRING -> skipString(tc, start);
+            case ObjectStreamConstants.TC_REFERENCE -> readHandle();
+            case ObjectStreamConstants.TC_NULL -> {
+            }
+            case ObjectStreamConstants.TC_EXCEPTION -> scanException();
+            case ObjectStreamConstants.TC_BLOCKDATA, ObjectStreamConstants.TC_BLOCKDATALONG -> {
+                if (!isBlockData) {
+                    throw new IOException("got a isBlockData TC_*, but not allowed here: " + JDeserialize.hex(tc));
+                }
+                int size = tc == ObjectStreamConstants.TC_BLOCKDATA ? input.readUnsignedByte() : input.readInt();
+                if (size < 0) {
+                    throw new IOException("invalid value for blockdata size: " + size);
+                }
+                JDeserialize.skipFully(input, size);
+            }
+            default -> throw new IOException("unknown content tc byte in stream: " + JDeserialize.hex(tc));
+        }
+    }
+
+    private void stepObject(Frame f) throws IOException {
+        int[] plan = f.layout.plan;
+        f.pc = f.layout.readPrimitives(f.pc, input, null);
+        if (f.pc == plan.length) {
+            stack.removeLast();
+            finished(f.ordinal);
+            return;
+        }
+        int pc = f.pc;
+        f.pc += 2;
+        if (plan[pc] == ClassLayout.OP_ANNOTATIONS) {
+            Frame annotations = new Frame();
+            annotations.annotations = true;
+            stack.add(annotations);
+            return;
+        }
+        byte tc = input.readByte();
+        if (plan[pc] == ClassLayout.OP_ARRAY && tc != ObjectStreamConstants.TC_ARRAY) {
+            throw new IOException("array type listed, but typecode is not TC_ARRAY: " + JDeserialize.hex(tc));
+        }
+        startContent(tc, false);
+    }
+
+    private void stepArray(Frame f) throws IOException {
+        if (f.remaining == 0) {
+            stack.removeLast();
+            finished(f.ordinal);
+            return;
+        }
+        byte tc = input.readByte();
+        if (f.elementType == FieldType.ARRAY && tc != ObjectStreamConstants.TC_ARRAY) {
+            throw new IOException("array type listed, but typecode is not TC_ARRAY: " + JDeserialize.hex(tc));
+        }
+        f.remaining--;
+        startContent(tc, false);
+    }
+
+    private void stepAnnotations() throws IOException {
+        byte tc = input.readByte();
+        if (tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+            stack.removeLast();
+        } else if (tc == ObjectStreamConstants.TC_RESET) {
+            resetHandles();
+        } else {
+            startContent(tc, true);
+        }
+    }
+
+    /**
+     * Skips a serialized exception, and unwinds to the top level like JDeserialize does.
+     */
+    private void scanException() throws IOException {
+        resetHandles();
+        byte tc = input.readByte();
+        if (tc == ObjectStreamConstants.TC_RESET) {
+            throw new ValidityException("TC_RESET for object while reading exception: what should we do?");
+        }
+        if (tc == ObjectStreamConstants.TC_NULL) {
+            throw new ValidityException("stream signaled for an exception, but exception object was null!");
+        }
+        if (tc != ObjectStreamConstants.TC_OBJECT) {
+            throw new ValidityException("stream signaled for an exception, but content is not an object!");
+        }
+        scanContent(tc, false);
+        resetHandles();
+        throw new ExceptionReadException(null);
+    }
+
+    private void skipString(byte tc, long start) throws IOException {
+        long length;
+        if (tc == ObjectStreamConstants.TC_STRING) {
+            length = input.readUnsignedShort();
+        } else if (tc == ObjectStreamConstants.TC_LONGSTRING) {
+            length = input.readLong();
+            if (length < 0) {
+                throw new IOException("invalid long string length: " + length);
+            }
+        } else if (tc == ObjectStreamConstants.TC_NULL) {
+            throw new ValidityException("stream signaled TC_NULL when string type expected!");
+        } else {
+            throw new IOException("invalid tc byte in string: " + JDeserialize.hex(tc));
+        }
+        long ordinal = newHandle(tc, start, null);
+        JDeserialize.skipFully(input, length);
+        finished(ordinal);
+    }
+
+    /**
+     * Reads the class name of an object field, which is retained for later class
+     * descriptions.
+     *
+     * @return the class name, or null if it refers to a string that wasn't retained
+     */
+    private StringObject readTypeName() throws IOException {
+        long start = input.position();
+        byte tc = input.readByte();
+        if (tc == ObjectStreamConstants.TC_REFERENCE) {
+            int h = readHandle();
+            IContent content = retained.get(h);
+            if (content == null) {
+                return null;
+            }
+            if (!(content instanceof StringObject)) {
+                throw new IOException("got reference for a string, but referenced value was something else!");
+            }
+            return (StringObject) content;
+        }
+        int length;
+        if (tc == ObjectStreamConstants.TC_STRING) {
+            length = input.readUnsignedShort();
+        } else if (tc == ObjectStreamConstants.TC_LONGSTRING) {
+            long longLength = input.readLong();
+            if (longLength < 0 || longLength > Integer.MAX_VALUE) {
+                throw new IOException("invalid long string length: " + longLength);
+            }
+            length = (int) longLength;
+        } else {
+            throw new IOException("invalid tc byte in string: " + JDeserialize.hex(tc));
+        }
+        int h = currentHandle;
+        long ordinal = newHandle(tc, start, null);
+        byte[] data = JDeserialize.readBytes(input, length);
+        finished(ordinal);
+        StringObject sobj = new StringObject(h, data);
+        retained.put(h, sobj);
+        return sobj;
+    }
+
+    private ClassDescriptor readClassDesc() throws IOException {
+        long start = input.position();
+        byte tc = input.readByte();
+        if (tc == ObjectStreamConstants.TC_NULL) {
+            return null;
+        } else if (tc == ObjectStreamConstants.TC_REFERENCE) {
+            IContent c = retained.get(readHandle());
+            if (!(c instanceof ClassDescriptor)) {
+                throw new IOException("referenced object not a class description!");
+            }
+            return (ClassDescriptor) c;
+        } else if (tc == ObjectStreamConstants.TC_CLASSDESC || tc == ObjectStreamConstants.TC_PROXYCLASSDESC) {
+            return readNewClassDesc(tc, start);
+        }
+        throw new ValidityException("expected a valid class description starter got " + JDeserialize.hex(tc));
+    }
+
+    private ClassDescriptor readNewClassDesc(byte tc, long start) throws IOException {
+        ClassDescriptor cd;
+        int h = currentHandle;
+        long ordinal;
+        if (tc == ObjectStreamConstants.TC_CLASSDESC) {
+            String name = input.readUTF();
+            long serialVersionUID = input.readLong();
+            ordinal = newHandle(tc, start, name);
+            cd = ClassDescriptor.readClassDesc(input, name, serialVersionUID, this::readTypeName);
+        } else {
+            ordinal = newHandle(tc, start, ClassDescriptor.PROXY_CLASS_NAME);
+            cd = ClassDescriptor.readProxyClassDesc(input);
+        }
+        cd.handle = h;
+        int depth = stack.size();
+        Frame annotations = new Frame();
+        annotations.annotations = true;
+        stack.add(annotations);
+        drain(depth);
+        cd.superClass = readClassDesc();
+        if (retained.containsKey(h)) {
+            throw new IOException("trying to reset handle " + JDeserialize.hex(h));
+        }
+        retained.put(h, cd);
+        finished(ordinal);
+        return cd;
+    }
+}
@@ -1,27 +1,95 @@
 package org.unsynchronized;
 
-import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
+ * <p>
  * Represents a serialized string object.  This is primarily used in serialized streams;
  * however, it is also used internally by other objects, since string objects have
  * handles as well.
+ * </p>
+ *
+ * <p>
+ * The string keeps the raw modified UTF-8 bytes it was read from.  They are validated
+ * when the object is constructed, but only decoded into a String the first time
+ * getValue() is called.  contentEquals() and contentHashCode() work on the raw bytes, so
+ * strings can be compared without decoding them.
+ * </p>
+ *
+ * <p>
+ * Very long strings may instead be left in a Payload (see
+ * JDeserialize.setPayloadThreshold()); they are validated a chunk at a time, and the
+ * bytes are only read when getValue() or getData() is called.  A string of more than 2GB
+ * of bytes can't be decoded at all, and is only available through getPayload().
+ * </p>
  */
 public class StringObject extends Content {
-    public String value;
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
 
-    private int readOrThrow(ByteArrayInputStream stream) throws EOFException {
-        int x = stream.read();
-        if (x == -1) {
-            throw new EOFException("unexpected eof in modified utf-8 string");
+    /**
+     * The number of encoded bytes that toString() shows of a string in a payload.
+     */
+    private static final int PREVIEW_BYTES = 256;
+
+    /**
+     * The modified UTF-8 encoding of the string, or null if it has yet to be encoded
+     * from a value set by setValue().
+     */
+    private byte[] data;
+
+    /**
+     * The decoded string, or null if it hasn't been decoded yet.
+     */
+    private String value;
+
+    /**
+     * The encoded bytes of a string that was left in a payload, or null.
+     */
+    private Payload payload;
+
+    private int contentHash;
+    private boolean contentHashed;
+
+    /**
+     * Describes the string.  Of a string in a payload that hasn't been decoded, only the
+     * first PREVIEW_BYTES bytes are decoded; if there are more, the value is followed by
+     * "..." and the length in bytes.
+     */
+    public String toString() {
+        if (payload != null && value == null) {
+            return "[String " + JDeserialize.hex(handle) + ": " + preview() + "]";
         }
-        return x;
+        return "[String " + JDeserialize.hex(handle) + ": \"" + getValue() + "\"]";
     }
 
-    public String toString() {
-        return "[String " + JDeserialize.hex(handle) + ": \"" + value + "\"]";
+    private String preview() {
+        long length = payload.length();
+        try {
+            if (length <= PREVIEW_BYTES) {
+                byte[] bytes = payload.getBytes();
+                return "\"" + decode(bytes, 0, bytes.length) + "\"";
+            }
+            // back up to the start of a character that the cut would split
+            byte[] bytes = payload.getBytes(0, PREVIEW_BYTES + 1);
+            int cut = PREVIEW_BYTES;
+            while (cut > 0 && (bytes[cut] & 0xc0) == 0x80) {
+                cut--;
+            }
+            return "\"" + decode(bytes, 0, cut) + "\"... (" + length + " bytes)";
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
     }
 
     /**
@@ -34,43 +102,279 @@ public class StringObject extends Content {
     public StringObject(int handle, byte[] data) throws IOException {
         super(ContentType.STRING);
         this.handle = handle;
-        ByteArrayInputStream stream = new ByteArrayInputStream(data);
-        StringBuilder stringBuilder = new StringBuilder();
+        decode(data, 0, data.length, null, 0);
+        this.data = data;
+    }
+
+    /**
+     * Constructor for a string whose bytes are left in a payload.  The bytes are read
+     * once, to validate them.
+     *
+     * @param handle the string object's handle
+     * @param payload the bytes corresponding to the string
+     * @throws IOException if an I/O or validity error occurs
+     */
+    public StringObject(int handle, Payload payload) throws IOException {
+        super(ContentType.STRING);
+        this.handle = handle;
+        validate(payload);
+        this.payload = payload;
+    }
+
+    /**
+     * Validates encoded bytes a chunk at a time.  Each chunk is cut at the start of its
+     * last character, which may continue in the next chunk.
+     */
+    private static void validate(Payload payload) throws IOException {
+        byte[] chunk = new byte[JDeserialize.ARRAY_CHUNK_SIZE + 3];
+        InputStream in = payload.openStream();
+        int carry = 0;
         while (true) {
-            int ba = stream.read();
-            if (ba == -1) {
+            int end = carry + in.readNBytes(chunk, carry, JDeserialize.ARRAY_CHUNK_SIZE);
+            if (end == carry) {
+                decode(chunk, 0, carry, null, 0);
+                return;
+            }
+            int cut = end;
+            while (cut > Math.max(0, end - 3) && (chunk[cut - 1] & 0xc0) == 0x80) {
+                cut--;
+            }
+            if (cut > Math.max(0, end - 3)) {
+                cut--;
+            }
+            decode(chunk, 0, cut, null, 0);
+            carry = end - cut;
+            System.arraycopy(chunk, cut, chunk, 0, carry);
+        }
+    }
+
+    /**
+     * @return the payload holding the encoded bytes of the string, or null if they are in
+     * memory
+     */
+    public Payload getPayload() {
+        return payload;
+    }
+
+    /**
+     * Gets the string's value, decoding it on first use.
+     *
+     * @return the string value
+     */
+    public String getValue() {
+        if (value == null) {
+            byte[] bytes = getData();
+            try {
+                value = decode(bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new IllegalStateException("string data changed after validation", e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the string's value.
+     *
+     * @param value the new value
+     */
+    public void setValue(String value) {
+        this.value = Objects.requireNonNull(value);
+        this.data = null;
+        this.payload = null;
+        this.contentHashed = false;
+    }
+
+    /**
+     * Gets the modified UTF-8 encoding of the string, as it appears in the stream.  The
+     * returned array is not a copy, and must not be modified; for a string in a payload,
+     * it is read from the payload on every call.
+     *
+     * @return the encoded bytes
+     * @throws IllegalStateException if the string is in a payload that is too long for an
+     * array
+     * @throws UncheckedIOException if the payload can't be read
+     */
+    public byte[] getData() {
+        if (payload != null) {
+            if (payload.length() > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("string is too long to decode: " + payload.length() + " bytes");
+            }
+            try {
+                return payload.getBytes();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+        if (data == null) {
+            data = encode(value);
+        }
+        return data;
+    }
+
+    /**
+     * Compares the contents of two strings, byte by byte, without decoding them.
+     *
+     * @param other the string to compare to
+     * @return true iff both strings have the same encoded bytes, and therefore the same
+     * value
+     */
+    public boolean contentEquals(StringObject other) {
+        if (other == this) {
+            return true;
+        }
+        if (other == null || (contentHashed && other.contentHashed && contentHash != other.contentHash)) {
+            return false;
+        }
+        return Arrays.equals(getData(), other.getData());
+    }
+
+    /**
+     * Computes a hash of the string's contents from its encoded bytes.  Strings that are
+     * contentEquals() have the same contentHashCode().
+     *
+     * @return the hash code
+     */
+    public int contentHashCode() {
+        if (!contentHashed) {
+            contentHash = Arrays.hashCode(getData());
+            contentHashed = true;
+        }
+        return contentHash;
+    }
+
+    /**
+     * <p>
+     * Decodes a modified UTF-8 string, as written by DataOutput.writeUTF() and used for
+     * TC_STRING and TC_LONGSTRING.  2- and 3-byte sequences are validated strictly, and
+     * raw nulls (which modified UTF-8 encodes as 2 bytes) are rejected.
+     * </p>
+     *
+     * <p>
+     * Most strings in a stream (class names, field names, map keys) are pure ASCII.  The
+     * bytes are first checked eight at a time for a high bit or a null; if there are
+     * none, the String is built directly from the bytes.  Otherwise, decoding continues
+     * from the first non-ASCII byte into a char array.
+     * </p>
+     *
+     * @param data the encoded bytes
+     * @param offset the offset of the first byte
+     * @param length the number of encoded bytes
+     * @return the decoded string
+     * @throws IOException if the bytes aren't valid modified UTF-8
+     */
+    public static String decode(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = asciiPrefix(data, offset, end);
+        if (i == end) {
+            return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[end - offset];
+        for (int j = offset; j < i; j++) {
+            chars[j - offset] = (char) data[j];
+        }
+        int n = decode(data, i, end, chars, i - offset);
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Finds the first byte that isn't a non-null ASCII character.
+     *
+     * @return the offset of that byte, or end if there is none
+     */
+    private static int asciiPrefix(byte[] data, int i, int end) {
+        while (i <= end - 8) {
+            long word = (long) LONG.get(data, i);
+            // a byte has its high bit set, or (if none do) a byte is zero
+            if (((word | (word - LOW_BITS)) & HIGH_BITS) != 0) {
                 break;
             }
+            i += 8;
+        }
+        while (i < end && data[i] > 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Decodes data[i..end) into chars, starting at chars[n].  If chars is null, the data
+     * is only validated.
+     *
+     * @return the number of chars in the array afterwards
+     */
+    private static int decode(byte[] data, int i, int end, char[] chars, int n) throws IOException {
+        if (chars == null) {
+            i = asciiPrefix(data, i, end);
+        }
+        while (i < end) {
+            int ba = data[i++] & 0xff;
+            char c;
             if ((ba & 0x80) == 0) {                  /* U+0001..U+007F */
                 if (ba == 0) {
                     throw new IOException("improperly-encoded null in modified UTF8 string!");
                 }
-                stringBuilder.append((char) ba);
+                c = (char) ba;
             } else if ((ba & 0xf0) == 0xe0) {        /* U+0800..U+FFFF */
-                int bb = readOrThrow(stream);
+                int bb = byteAt(data, i++, end);
                 if ((bb & 0xc0) != 0x80) {
                     throw new IOException("byte b in 0800-FFFF seq doesn't begin with correct prefix");
                 }
-                int bc = readOrThrow(stream);
+                int bc = byteAt(data, i++, end);
                 if ((bc & 0xc0) != 0x80) {
                     throw new IOException("byte c in 0800-FFFF seq doesn't begin with correct prefix");
                 }
-                int cp =
-                        ((ba & 0xf) << 12)
-                                | ((bb & 0x3f) << 6)
-                                | (bc & 0x3f);
-                stringBuilder.append((char) cp);
+                c = (char) (((ba & 0xf) << 12) | ((bb & 0x3f) << 6) | (bc & 0x3f));
             } else if ((ba & 0xe0) == 0xc0) {        /* U+0080..U+07FF */
-                int bb = readOrThrow(stream);
+                int bb = byteAt(data, i++, end);
                 if ((bb & 0xc0) != 0x80) {
                     throw new IOException("byte b in 0080-07FF seq doesn't begin with correct prefix");
                 }
-                int cp = ((ba & 0x1f) << 6) | (bb & 0x3f);
-                stringBuilder.append((char) cp);
+                c = (char) (((ba & 0x1f) << 6) | (bb & 0x3f));
             } else {
                 throw new IOException("invalid byte in modified utf-8 string: " + JDeserialize.hex(ba));
             }
+            if (chars != null) {
+                chars[n++] = c;
+            }
+        }
+        return n;
+    }
+
+    private static int byteAt(byte[] data, int i, int end) throws EOFException {
+        if (i >= end) {
+            throw new EOFException("unexpected eof in modified utf-8 string");
+        }
+        return data[i];
+    }
+
+    /**
+     * Encodes a string in modified UTF-8.
+     *
+     * @param s the string to encode
+     * @return the encoded bytes
+     */
+    public static byte[] encode(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+        byte[] out = new byte[length];
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                out[n++] = (byte) c;
+            } else if (c <= 0x07ff) {
+                out[n++] = (byte) (0xc0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                out[n++] = (byte) (0xe0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            }
         }
-        this.value = stringBuilder.toString();
+        return out;
     }
 }
@@ -0,0 +1,78 @@
+package org.unsynchronized;
+
+/**
+ * Kinds of events reported to an ITraceListener while JDeserialize parses a stream.  See
+ * ITraceListener.trace() for the data that comes with each event.
+ */
+public enum TraceEvent {
+    /**
+     * A new class description (TC_CLASSDESC) was started: its name, fields and flags were
+     * read, and its annotations and superclass description follow; size is its field
+     * count.
+     */
+    CLASSDESC,
+
+    /**
+     * A new proxy class description (TC_PROXYCLASSDESC) was started: its interface names
+     * were read, and its annotations and superclass description follow; size is its
+     * interface count.
+     */
+    PROXY_CLASSDESC,
+
+    /**
+     * A new instance (TC_OBJECT) was started; its class data follows.
+     */
+    OBJECT,
+
+    /**
+     * All class data of an instance has been read.
+     */
+    OBJECT_END,
+
+    /**
+     * A new array (TC_ARRAY) was started; size is its length.
+     */
+    ARRAY,
+
+    /**
+     * A new Class object (TC_CLASS) was read.
+     */
+    CLASS,
+
+    /**
+     * A new enum constant (TC_ENUM) was started; its constant name follows.
+     */
+    ENUM,
+
+    /**
+     * A new string (TC_STRING or TC_LONGSTRING) was read; size is its encoded length.
+     */
+    STRING,
+
+    /**
+     * Block data (TC_BLOCKDATA or TC_BLOCKDATALONG) was read or, when offset is the start
+     * of the data rather than its end, left in the input; size is its length.
+     */
+    BLOCKDATA,
+
+    /**
+     * A reference to earlier content (TC_REFERENCE) was resolved.  The class name is
+     * null when the referenced content was skipped by the filter.
+     */
+    REFERENCE,
+
+    /**
+     * An instance, array or string was skipped because of the content filter.
+     */
+    SKIP,
+
+    /**
+     * A serialized exception (TC_EXCEPTION) starts; the exception object follows.
+     */
+    EXCEPTION,
+
+    /**
+     * The handle table was reset, by TC_RESET or around a serialized exception.
+     */
+    RESET
+}
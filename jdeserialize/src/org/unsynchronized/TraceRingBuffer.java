@@ -0,0 +1,156 @@
+package org.unsynchronized;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An ITraceListener that keeps the most recent events in a fixed-size ring buffer.
+ * Events are stored in preallocated primitive arrays (and the class name by reference),
+ * so recording an event costs a few array stores and never allocates.  This makes it
+ * suitable for leaving on in production: when parsing fails, print() shows what led up
+ * to the failure.
+ * </p>
+ *
+ * <p>
+ * Like the parser, this class is not thread-safe.
+ * </p>
+ */
+public class TraceRingBuffer implements ITraceListener {
+    private static final TraceEvent[] EVENTS = TraceEvent.values();
+
+    private final int mask;
+
+    /**
+     * Per entry: event ordinal << 8 | tc & 0xff.
+     */
+    private final int[] kinds;
+    private final int[] handles;
+    private final long[] offsets;
+    private final long[] sizes;
+    private final String[] classNames;
+    private long count;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of events to keep; rounded up to a power of two
+     */
+    public TraceRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.kinds = new int[size];
+        this.handles = new int[size];
+        this.offsets = new long[size];
+        this.sizes = new long[size];
+        this.classNames = new String[size];
+    }
+
+    public void trace(TraceEvent event, byte tc, int handle, long offset, String className, long size) {
+        int i = (int) count & mask;
+        kinds[i] = event.ordinal() << 8 | tc & 0xff;
+        handles[i] = handle;
+        offsets[i] = offset;
+        sizes[i] = size;
+        classNames[i] = className;
+        count++;
+    }
+
+    /**
+     * @return the total number of events recorded, including those that have since
+     * been overwritten
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of events currently held
+     */
+    public int size() {
+        return (int) Math.min(count, mask + 1L);
+    }
+
+    /**
+     * Forgets all events.
+     */
+    public void clear() {
+        count = 0;
+        Arrays.fill(classNames, null);
+    }
+
+    /**
+     * Gets one of the held events.
+     *
+     * @param index 0 for the oldest event held, size() - 1 for the most recent one
+     * @return the event
+     */
+    public TraceEvent getEvent(int index) {
+        return EVENTS[kinds[slot(index)] >>> 8];
+    }
+
+    /**
+     * @param index the event index, as in getEvent()
+     * @return the typecode of the event
+     */
+    public byte getTypecode(int index) {
+        return (byte) kinds[slot(index)];
+    }
+
+    /**
+     * @param index the event index, as in getEvent()
+     * @return the handle of the event, or -1
+     */
+    public int getHandle(int index) {
+        return handles[slot(index)];
+    }
+
+    /**
+     * @param index the event index, as in getEvent()
+     * @return the input offset of the event, or -1
+     */
+    public long getOffset(int index) {
+        return offsets[slot(index)];
+    }
+
+    /**
+     * @param index the event index, as in getEvent()
+     * @return the class name of the event, or null
+     */
+    public String getClassName(int index) {
+        return classNames[slot(index)];
+    }
+
+    /**
+     * @param index the event index, as in getEvent()
+     * @return the size of the event
+     */
+    public long getSize(int index) {
+        return sizes[slot(index)];
+    }
+
+    /**
+     * Prints the held events, oldest first, one per line.
+     *
+     * @param ps the stream to print to
+     */
+    public void print(PrintStream ps) {
+        for (int i = 0; i < size(); i++) {
+            ps.println(PrintTraceListener.format(getEvent(i), getTypecode(i), getHandle(i), getOffset(i), getClassName(i), getSize(i)));
+        }
+    }
+
+    private int slot(int index) {
+        int size = size();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of " + size);
+        }
+        return (int) (count - size + index) & mask;
+    }
+}
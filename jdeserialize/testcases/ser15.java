@@ -0,0 +1,54 @@
+import java.io.*;
+
+public class ser15 {
+    public static class A implements Serializable {
+        short s = 1;
+        Object a = "a";
+        Object b = "b";
+    }
+
+    public static class B extends A {
+        int x = 2;
+    }
+
+    public static void main(String[] args) {
+        do_write();
+        do_read();
+    }
+
+    public static void do_write() {
+        try {
+            FileOutputStream fos = new FileOutputStream("ser15.duh");
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            oos.writeObject(new B());
+            oos.flush();
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        System.out.println("wrote");
+    }
+
+    public static void do_read() {
+        try {
+            FileInputStream fos = new FileInputStream("ser15.duh");
+            ObjectInputStream ois = new ObjectInputStream(fos);
+            B b = (B) ois.readObject();
+            System.out.println("s " + b.s + " a " + b.a + " b " + b.b + " x " + b.x);
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (ClassNotFoundException e) {
+            System.out.println("ClassNotFoundException");
+            System.exit(1);
+        }
+    }
+}
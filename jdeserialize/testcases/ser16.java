@@ -0,0 +1,52 @@
+import java.io.*;
+
+public class ser16 {
+    public static class A implements Serializable {
+        Object o = "value";
+    }
+
+    public static void main(String[] args) {
+        do_write();
+        do_read();
+    }
+
+    public static void do_write() {
+        try {
+            FileOutputStream fos = new FileOutputStream("ser16.duh");
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            // field type signatures are interned, so the class description of A refers
+            // back to this string instead of repeating it
+            oos.writeObject("Ljava/lang/Object;");
+            oos.writeObject(new A());
+            oos.flush();
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        System.out.println("wrote");
+    }
+
+    public static void do_read() {
+        try {
+            FileInputStream fos = new FileInputStream("ser16.duh");
+            ObjectInputStream ois = new ObjectInputStream(fos);
+            String s = (String) ois.readObject();
+            A a = (A) ois.readObject();
+            System.out.println("s " + s + " o " + a.o);
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (ClassNotFoundException e) {
+            System.out.println("ClassNotFoundException");
+            System.exit(1);
+        }
+    }
+}
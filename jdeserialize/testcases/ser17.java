@@ -0,0 +1,72 @@
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * ser17.txt is the expected output of "jdeserialize -excludefield items ser17.duh": the
+ * list and the Custom instances in it are walked without being materialized, and the
+ * back-reference from Holder.last resolves to null.
+ */
+public class ser17 {
+    public static class Custom implements Serializable {
+        String label;
+        int[] values;
+
+        Custom(int i) {
+            label = "custom " + i;
+            values = new int[] { i, i * 2 };
+        }
+    }
+
+    public static class Holder implements Serializable {
+        String name = "holder";
+        ArrayList<Custom> items = new ArrayList<>();
+        // written after items, so this refers back into the excluded subtree
+        Custom last;
+    }
+
+    public static void main(String[] args) {
+        do_write();
+        do_read();
+    }
+
+    public static void do_write() {
+        try {
+            FileOutputStream fos = new FileOutputStream("ser17.duh");
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            Holder h = new Holder();
+            for (int i = 0; i < 3000; i++) {
+                h.items.add(new Custom(i));
+            }
+            h.last = h.items.get(h.items.size() - 1);
+            oos.writeObject(h);
+            oos.flush();
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        System.out.println("wrote");
+    }
+
+    public static void do_read() {
+        try {
+            FileInputStream fos = new FileInputStream("ser17.duh");
+            ObjectInputStream ois = new ObjectInputStream(fos);
+            Holder h = (Holder) ois.readObject();
+            System.out.println("name " + h.name + " items " + h.items.size() + " last " + h.last.label);
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (ClassNotFoundException e) {
+            System.out.println("ClassNotFoundException");
+            System.exit(1);
+        }
+    }
+}
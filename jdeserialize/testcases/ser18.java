@@ -0,0 +1,76 @@
+import java.io.*;
+
+/**
+ * A linked list 100000 nodes deep, which a parser that recurses once per nesting level
+ * can't read with the default thread stack size.  ser18.txt is the expected output of
+ * "jdeserialize -noinstances ser18.duh".  ObjectOutputStream and ObjectInputStream do
+ * recurse, so this runs them on a thread with a big stack.
+ */
+public class ser18 {
+    public static final int DEPTH = 100000;
+
+    public static class Node implements Serializable {
+        int value;
+        Node next;
+
+        Node(int value, Node next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Thread t = new Thread(null, () -> {
+            do_write();
+            do_read();
+        }, "ser18", 1L << 30);
+        t.start();
+        t.join();
+    }
+
+    public static void do_write() {
+        try {
+            FileOutputStream fos = new FileOutputStream("ser18.duh");
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            Node head = null;
+            for (int i = DEPTH - 1; i >= 0; i--) {
+                head = new Node(i, head);
+            }
+            oos.writeObject(head);
+            oos.writeObject("end");
+            oos.flush();
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        System.out.println("wrote");
+    }
+
+    public static void do_read() {
+        try {
+            FileInputStream fos = new FileInputStream("ser18.duh");
+            ObjectInputStream ois = new ObjectInputStream(fos);
+            Node n = (Node) ois.readObject();
+            int count = 0;
+            while (n != null) {
+                count++;
+                n = n.next;
+            }
+            System.out.println("nodes " + count + " then " + ois.readObject());
+        } catch (FileNotFoundException e) {
+            System.out.println("file not found");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("IOException");
+            System.exit(1);
+        } catch (ClassNotFoundException e) {
+            System.out.println("ClassNotFoundException");
+            System.exit(1);
+        }
+    }
+}